@@ -21,9 +21,11 @@ LOCAL_MODULE_TAGS := user # should be optional, but launcher crashes without thi
 
 LOCAL_STATIC_JAVA_LIBRARIES := google-framework
 
-LOCAL_SRC_FILES := $(call all-subdir-java-files)
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
 
 LOCAL_PACKAGE_NAME := GoogleSearch
 LOCAL_CERTIFICATE := shared
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
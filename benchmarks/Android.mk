@@ -0,0 +1,53 @@
+#
+# Copyright (C) 2009 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# JMH benchmarks of the suggestion and search url code, run on the host:
+#   java -jar $ANDROID_HOST_OUT/framework/googlesearch-benchmarks.jar -prof gc
+# -prof gc adds the bytes allocated per operation to the timings. Name benchmarks to run
+# only some, e.g. SearchEncodingBenchmark.
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+# The classes measured use nothing of the framework beyond what shims/ stands in for.
+googlesearch_measured := \
+        LatencyHistogram \
+        SearchEncoding \
+        SearchStats \
+        SuggestResponseParser \
+        SuggestionCache \
+        SuggestionMerger \
+        SuggestionSource \
+        Suggestions \
+        SuggestionsCursor
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+        $(call all-java-files-under, shims) \
+        $(patsubst %,../src/com/android/googlesearch/%.java,$(googlesearch_measured))
+
+LOCAL_STATIC_JAVA_LIBRARIES := \
+        jmh-core \
+        jmh-generator-annprocess \
+        jopt-simple \
+        commons-math3
+
+LOCAL_JAR_MANIFEST := manifest.txt
+
+LOCAL_MODULE := googlesearch-benchmarks
+
+include $(BUILD_HOST_JAVA_LIBRARY)
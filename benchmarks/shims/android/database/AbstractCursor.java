@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database;
+
+/**
+ * Host stand-in for the framework class, for the benchmarks. Only positioning and the
+ * default {@link #fillWindow(int, CursorWindow)} are implemented, the latter the way the
+ * framework does it: one row at a time, through the cursor's getters.
+ */
+public abstract class AbstractCursor {
+
+    protected int mPos = -1;
+
+    public abstract int getCount();
+
+    public abstract String[] getColumnNames();
+
+    public abstract String getString(int column);
+
+    public abstract short getShort(int column);
+
+    public abstract int getInt(int column);
+
+    public abstract long getLong(int column);
+
+    public abstract float getFloat(int column);
+
+    public abstract double getDouble(int column);
+
+    public abstract boolean isNull(int column);
+
+    public int getColumnCount() {
+        return getColumnNames().length;
+    }
+
+    public final int getPosition() {
+        return mPos;
+    }
+
+    public final boolean moveToPosition(int position) {
+        int count = getCount();
+        if (position >= count) {
+            mPos = count;
+            return false;
+        }
+        if (position < 0) {
+            mPos = -1;
+            return false;
+        }
+        mPos = position;
+        return true;
+    }
+
+    public final boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    public final boolean moveToNext() {
+        return moveToPosition(mPos + 1);
+    }
+
+    public boolean requery() {
+        return true;
+    }
+
+    public void close() {
+    }
+
+    public void fillWindow(int position, CursorWindow window) {
+        if (position < 0 || position > getCount()) {
+            return;
+        }
+        window.acquireReference();
+        try {
+            int oldPos = mPos;
+            mPos = position - 1;
+            window.clear();
+            window.setStartPosition(position);
+            int columnNum = getColumnCount();
+            window.setNumColumns(columnNum);
+            while (moveToNext() && window.allocRow()) {
+                for (int i = 0; i < columnNum; i++) {
+                    String field = getString(i);
+                    boolean ok = field != null
+                            ? window.putString(field, mPos, i)
+                            : window.putNull(mPos, i);
+                    if (!ok) {
+                        window.freeLastRow();
+                        break;
+                    }
+                }
+            }
+            mPos = oldPos;
+        } finally {
+            window.releaseReference();
+        }
+    }
+}
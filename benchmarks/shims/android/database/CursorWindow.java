@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database;
+
+/**
+ * Host stand-in for the framework class, for the benchmarks. The framework keeps the window
+ * in native shared memory; this keeps it in arrays, without copying the strings, so what is
+ * measured is the cost of the cursor's side of the fill: the calls made, and what is
+ * allocated for them.
+ */
+public class CursorWindow {
+
+    private int mStartPos;
+    private int mNumColumns;
+    private int mNumRows;
+    private String[] mStrings = new String[64];
+    private long[] mLongs = new long[64];
+
+    public CursorWindow(boolean localWindow) {
+    }
+
+    public void acquireReference() {
+    }
+
+    public void releaseReference() {
+    }
+
+    public void clear() {
+        for (int i = 0; i < mNumRows * mNumColumns; i++) {
+            mStrings[i] = null;
+        }
+        mStartPos = 0;
+        mNumRows = 0;
+    }
+
+    public int getStartPosition() {
+        return mStartPos;
+    }
+
+    public void setStartPosition(int pos) {
+        mStartPos = pos;
+    }
+
+    public int getNumRows() {
+        return mNumRows;
+    }
+
+    public boolean setNumColumns(int columnNum) {
+        mNumColumns = columnNum;
+        return true;
+    }
+
+    public boolean allocRow() {
+        int size = (mNumRows + 1) * mNumColumns;
+        if (size > mStrings.length) {
+            int capacity = Math.max(size, 2 * mStrings.length);
+            String[] strings = new String[capacity];
+            System.arraycopy(mStrings, 0, strings, 0, mStrings.length);
+            mStrings = strings;
+            long[] longs = new long[capacity];
+            System.arraycopy(mLongs, 0, longs, 0, mLongs.length);
+            mLongs = longs;
+        }
+        mNumRows++;
+        return true;
+    }
+
+    public void freeLastRow() {
+        mNumRows--;
+    }
+
+    public boolean putString(String value, int row, int col) {
+        mStrings[index(row, col)] = value;
+        return true;
+    }
+
+    public boolean putLong(long value, int row, int col) {
+        mLongs[index(row, col)] = value;
+        return true;
+    }
+
+    public boolean putNull(int row, int col) {
+        mStrings[index(row, col)] = null;
+        return true;
+    }
+
+    public String getString(int row, int col) {
+        return mStrings[index(row, col)];
+    }
+
+    private int index(int row, int col) {
+        return (row - mStartPos) * mNumColumns + col;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building search and suggest urls, and the location posted with a search.
+ *
+ * The *Before benchmarks are how the urls were built before SearchUrlBuilder: the suggest
+ * url with URLEncoder and string concatenation, and the search url with, in addition, the
+ * locale mapping and resource formatting done again for every search. Run with -prof gc to
+ * compare the bytes allocated per url as well as the time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SearchEncodingBenchmark {
+
+    // As in res/values/strings.xml; Resources.getString(int, Object...) formats like this.
+    private static final String SEARCH_BASE = "http://www.google.com/m?hl=%1$s&gl=%2$s&";
+    private static final String SUGGEST_BASE =
+            "http://www.google.com/complete/search?hl=%1$s&gl=%2$s&";
+
+    private static final String CLIENT_ID = "android-google";
+    private static final String SOURCE = "unknown";
+
+    @Param({ "weather", "pizza near me", "caf\u00e9 cr\u00e8me", "\u6771\u4eac \u5929\u6c17" })
+    public String mQuery;
+
+    @Param({ "en_US", "zh_TW" })
+    public String mLocaleName;
+
+    private Locale mLocale;
+    private String mSuggestPrefix;
+    private String mSearchPrefix;
+    private final StringBuilder mBuffer = new StringBuilder(256);
+
+    @Setup
+    public void setUp() {
+        String[] parts = mLocaleName.split("_");
+        mLocale = new Locale(parts[0], parts[1]);
+        String[] languageAndCountry = SearchEncoding.getLanguageAndCountry(mLocale);
+        mSuggestPrefix = String.format(SUGGEST_BASE, (Object[]) languageAndCountry)
+                + "json=true&q=";
+        mSearchPrefix = String.format(SEARCH_BASE, (Object[]) languageAndCountry)
+                + "client=ms-" + CLIENT_ID;
+    }
+
+    @Benchmark
+    public String suggestUrl() {
+        // As SearchUrlBuilder.buildSuggestUrl(), which uses a buffer per url.
+        StringBuilder url = new StringBuilder(mSuggestPrefix.length() + mQuery.length() + 16);
+        url.append(mSuggestPrefix);
+        SearchEncoding.appendEncoded(url, mQuery);
+        return url.toString();
+    }
+
+    @Benchmark
+    public String suggestUrlBefore() throws UnsupportedEncodingException {
+        return mSuggestPrefix + URLEncoder.encode(mQuery, "UTF-8");
+    }
+
+    @Benchmark
+    public String searchUrl() {
+        mBuffer.setLength(0);
+        mBuffer.append(mSearchPrefix).append("&source=android-").append(SOURCE).append("&q=");
+        SearchEncoding.appendEncoded(mBuffer, mQuery);
+        return mBuffer.toString();
+    }
+
+    @Benchmark
+    public String searchUrlBefore() throws UnsupportedEncodingException {
+        String[] languageAndCountry = SearchEncoding.getLanguageAndCountry(mLocale);
+        String base = String.format(SEARCH_BASE, (Object[]) languageAndCountry)
+                + "client=ms-" + CLIENT_ID;
+        return base + "&source=android-" + SOURCE + "&q=" + URLEncoder.encode(mQuery, "UTF-8");
+    }
+
+    @Benchmark
+    public String[] languageAndCountry() {
+        return SearchEncoding.getLanguageAndCountry(mLocale);
+    }
+
+    @Benchmark
+    public byte[] encodeLocation() {
+        return SearchEncoding.encodeLocation(37.422006, -122.084095);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a suggest response, as it comes off the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SuggestResponseParserBenchmark {
+
+    @Param({ "10", "20" })
+    public int mSuggestionCount;
+
+    private byte[] mResponse;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Like complete/search?json=true: the query, the suggestions, their popularity and
+        // a trailing array we never read.
+        StringBuilder json = new StringBuilder("[\"caf\\u00e9\",[");
+        for (int i = 0; i < mSuggestionCount; i++) {
+            json.append(i == 0 ? "" : ",").append("\"caf\\u00e9 suggestion ").append(i)
+                    .append('"');
+        }
+        json.append("],[");
+        for (int i = 0; i < mSuggestionCount; i++) {
+            json.append(i == 0 ? "" : ",").append('"').append((mSuggestionCount - i) * 12345)
+                    .append(",000 results\"");
+        }
+        json.append("],[");
+        for (int i = 0; i < mSuggestionCount; i++) {
+            json.append(i == 0 ? "\"\"" : ",\"\"");
+        }
+        json.append("]]");
+        mResponse = json.toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public Suggestions parse() throws Exception {
+        return SuggestResponseParser.parse(new ByteArrayInputStream(mResponse), "UTF-8");
+    }
+}
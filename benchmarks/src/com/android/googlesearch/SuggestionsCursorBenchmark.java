@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import android.database.CursorWindow;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a suggestions cursor, and reading it the two ways it gets read: filled into a
+ * window for another process, and row by row through the typed getters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SuggestionsCursorBenchmark {
+
+    @Param({ "10", "20" })
+    public int mRowCount;
+
+    private Suggestions mHistory;
+    private Suggestions mSuggestions;
+    private SuggestionsCursor mCursor;
+    private CursorWindow mWindow;
+
+    @Setup
+    public void setUp() {
+        mHistory = new Suggestions(new String[] { "weather", "weather radar" },
+                new String[] { null, null });
+        String[] suggestions = new String[mRowCount];
+        String[] popularity = new String[mRowCount];
+        for (int i = 0; i < mRowCount; i++) {
+            suggestions[i] = "weather suggestion " + i;
+            popularity[i] = (mRowCount - i) * 12345 + ",000 results";
+        }
+        // Overlaps the history, as it usually does.
+        suggestions[0] = "Weather";
+        mSuggestions = new Suggestions(suggestions, popularity);
+        mCursor = new SuggestionsCursor(mHistory, mSuggestions);
+        mWindow = new CursorWindow(false);
+    }
+
+    /**
+     * Builds the cursor, merging the history with the suggestions.
+     */
+    @Benchmark
+    public SuggestionsCursor build() {
+        return new SuggestionsCursor(mHistory, mSuggestions);
+    }
+
+    @Benchmark
+    public CursorWindow fillWindow() {
+        mCursor.fillWindow(0, mWindow);
+        return mWindow;
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+        SuggestionsCursor cursor = mCursor;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            bh.consume(cursor.getLong(0));
+            bh.consume(cursor.getString(1));
+            bh.consume(cursor.getString(2));
+            bh.consume(cursor.getString(3));
+            bh.consume(cursor.isNull(4));
+            bh.consume(cursor.getString(5));
+            bh.consume(cursor.getInt(6));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.os.SystemClock;
+
+/**
+ * Stops requests to the suggest server while most of them are failing, so that typing
+ * does not wait out a timeout on every keystroke, and a struggling server is not made to
+ * struggle more.
+ *
+ * The breaker trips (opens) when too many of the recent requests have failed. While open,
+ * no requests are allowed. Once the backoff period has passed it lets a single probe
+ * request through (half-open): if that succeeds the breaker closes again, otherwise it
+ * reopens with twice the backoff, up to a limit.
+ *
+ * Each request that is let through gets a ticket, which it reports its outcome with. Only
+ * the holder of the probe's ticket can end the half-open state, so a request that was sent
+ * before the breaker tripped and is cancelled or answers late does not release the probe
+ * or close the breaker.
+ */
+class CircuitBreaker {
+
+    /**
+     * Returned by {@link #allowRequest()} when a request may not be sent.
+     */
+    public static final long NO_TICKET = 0;
+
+    // How many recent outcomes the failure rate is worked out over.
+    private static final int WINDOW_SIZE = 20;
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private static final String[] STATE_NAMES = { "closed", "open", "half-open" };
+
+    private final int mFailurePercent;
+    private final int mMinRequests;
+    private final long mMinBackoffMillis;
+    private final long mMaxBackoffMillis;
+
+    private int mState = CLOSED;
+
+    // Ring buffer of recent outcomes, true for failure.
+    private final boolean[] mOutcomes = new boolean[WINDOW_SIZE];
+    private int mOutcomeCount;
+    private int mNextOutcome;
+    private int mFailureCount;
+
+    private long mBackoffMillis;
+    private long mRetryAt;
+
+    private long mLastTicket;
+    // The ticket of the running probe, or NO_TICKET.
+    private long mProbeTicket = NO_TICKET;
+
+    private int mTripCount;
+    private int mShortCircuitCount;
+
+    /**
+     * @param failurePercent The percentage of recent requests that must fail to trip.
+     * @param minRequests How many outcomes must be known before the breaker may trip.
+     * @param minBackoffMillis How long the breaker stays open after first tripping.
+     * @param maxBackoffMillis The longest the breaker stays open after a failed probe.
+     */
+    public CircuitBreaker(int failurePercent, int minRequests, long minBackoffMillis,
+            long maxBackoffMillis) {
+        mFailurePercent = failurePercent;
+        mMinRequests = Math.min(minRequests, WINDOW_SIZE);
+        mMinBackoffMillis = minBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Checks whether requests are currently being stopped, without taking the probe.
+     * This is for deciding early on not to wait for the network at all.
+     */
+    public synchronized boolean isOpen() {
+        switch (mState) {
+            case OPEN:
+                return now() < mRetryAt;
+            case HALF_OPEN:
+                return mProbeTicket != NO_TICKET;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks whether a request may be sent. Its outcome must be reported with the ticket
+     * returned, to {@link #onSuccess(long)}, {@link #onFailure(long)} or
+     * {@link #onCancel(long)}.
+     *
+     * @return The request's ticket, or {@link #NO_TICKET} if it may not be sent.
+     */
+    public synchronized long allowRequest() {
+        if (mState == OPEN && now() >= mRetryAt) {
+            mState = HALF_OPEN;
+        }
+        if (mState == HALF_OPEN && mProbeTicket == NO_TICKET) {
+            mProbeTicket = ++mLastTicket;
+            return mProbeTicket;
+        }
+        if (mState != CLOSED) {
+            mShortCircuitCount++;
+            return NO_TICKET;
+        }
+        return ++mLastTicket;
+    }
+
+    /**
+     * Whether the breaker is closed, i.e. the server seems healthy.
+     */
+    public synchronized boolean isClosed() {
+        return mState == CLOSED;
+    }
+
+    public synchronized void onSuccess(long ticket) {
+        if (mState == HALF_OPEN) {
+            if (ticket == mProbeTicket) {
+                close();
+            }
+        } else if (mState == CLOSED) {
+            addOutcome(false);
+        }
+    }
+
+    public synchronized void onFailure(long ticket) {
+        if (mState == HALF_OPEN) {
+            if (ticket == mProbeTicket) {
+                open(Math.min(2 * mBackoffMillis, mMaxBackoffMillis));
+            }
+        } else if (mState == CLOSED) {
+            addOutcome(true);
+            if (mOutcomeCount >= mMinRequests
+                    && mFailureCount * 100 >= mFailurePercent * mOutcomeCount) {
+                mTripCount++;
+                open(mMinBackoffMillis);
+            }
+        }
+    }
+
+    /**
+     * Reports that a request was given up on before it had an outcome, e.g. because the
+     * user typed something else. If it was the probe, another may be sent.
+     */
+    public synchronized void onCancel(long ticket) {
+        if (mState == HALF_OPEN && ticket == mProbeTicket) {
+            mProbeTicket = NO_TICKET;
+        }
+    }
+
+    /**
+     * The clock the backoff is timed with. Tests override this.
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void addOutcome(boolean failed) {
+        if (mOutcomeCount == WINDOW_SIZE) {
+            if (mOutcomes[mNextOutcome]) {
+                mFailureCount--;
+            }
+        } else {
+            mOutcomeCount++;
+        }
+        mOutcomes[mNextOutcome] = failed;
+        if (failed) {
+            mFailureCount++;
+        }
+        mNextOutcome = (mNextOutcome + 1) % WINDOW_SIZE;
+    }
+
+    private void open(long backoffMillis) {
+        mState = OPEN;
+        mProbeTicket = NO_TICKET;
+        mBackoffMillis = backoffMillis;
+        mRetryAt = now() + backoffMillis;
+    }
+
+    private void close() {
+        mState = CLOSED;
+        mProbeTicket = NO_TICKET;
+        mOutcomeCount = 0;
+        mNextOutcome = 0;
+        mFailureCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{state=" + STATE_NAMES[mState]
+                + ", failures=" + mFailureCount + "/" + mOutcomeCount
+                + ", backoff=" + mBackoffMillis
+                + ", trips=" + mTripCount
+                + ", shortCircuited=" + mShortCircuitCount + "}";
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+/**
+ * Keeps the state of the active network in memory, updated from connectivity broadcasts,
+ * so that checking it on every keystroke is a single volatile read rather than a call to
+ * the connectivity service.
+ */
+public class ConnectivityMonitor {
+
+    /**
+     * How fast the active network is, roughly. These index the per-class policy arrays in
+     * config.xml.
+     */
+    public static final int CLASS_2G = 0;
+    public static final int CLASS_3G = 1;
+    public static final int CLASS_WIFI = 2;
+
+    private final ConnectivityManager mConnectivity;
+
+    private volatile State mState;
+
+    // The singleton object.
+    private static ConnectivityMonitor sConnectivityMonitor;
+
+    /**
+     * An immutable snapshot of the active network.
+     */
+    public static class State {
+        public final boolean mConnected;
+
+        /**
+         * One of {@link #CLASS_2G}, {@link #CLASS_3G} and {@link #CLASS_WIFI}. Meaningless
+         * if not connected.
+         */
+        public final int mNetworkClass;
+
+        /**
+         * Whether traffic on this network is likely to cost the user, i.e. it is mobile data
+         * or roaming.
+         */
+        public final boolean mMetered;
+
+        /**
+         * Identifies the kind of network, e.g. "1/0" for wifi or "0/3" for UMTS, for keeping
+         * statistics about different networks apart.
+         */
+        public final String mKey;
+
+        State(NetworkInfo info) {
+            if (info == null) {
+                mConnected = false;
+                mNetworkClass = CLASS_2G;
+                mMetered = true;
+                mKey = "none";
+            } else {
+                mConnected = info.isConnected();
+                mNetworkClass = getNetworkClass(info);
+                mMetered = info.getType() == ConnectivityManager.TYPE_MOBILE || info.isRoaming();
+                mKey = info.getType() + "/" + info.getSubtype();
+            }
+        }
+    }
+
+    /**
+     * Gets the singleton.
+     */
+    public static synchronized ConnectivityMonitor getConnectivityMonitor(Context context) {
+        if (sConnectivityMonitor == null) {
+            sConnectivityMonitor = new ConnectivityMonitor(context.getApplicationContext());
+        }
+        return sConnectivityMonitor;
+    }
+
+    /**
+     * Private constructor for singleton class; use {@link #getConnectivityMonitor(Context)}.
+     */
+    private ConnectivityMonitor(Context context) {
+        mConnectivity = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                update();
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        update();
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public boolean isConnected() {
+        return mState.mConnected;
+    }
+
+    /**
+     * Whether the user allows applications to use data in the background. This is not
+     * cached, as it is only needed for the occasional speculative request.
+     */
+    public boolean isBackgroundDataAllowed() {
+        return mConnectivity != null && mConnectivity.getBackgroundDataSetting();
+    }
+
+    private void update() {
+        mState = new State(mConnectivity != null ? mConnectivity.getActiveNetworkInfo() : null);
+    }
+
+    private static int getNetworkClass(NetworkInfo info) {
+        if (info.getType() != ConnectivityManager.TYPE_MOBILE) {
+            return CLASS_WIFI;
+        }
+        switch (info.getSubtype()) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+                return CLASS_2G;
+            default:
+                return CLASS_3G;
+        }
+    }
+}
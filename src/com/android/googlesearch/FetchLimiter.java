@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import java.util.HashMap;
+
+/**
+ * Limits how many network fetches run at once, in total and for each caller, so that many
+ * clients querying the provider at once cannot tie up all the binder threads of the hosting
+ * process waiting on the network, and no one client can starve the others.
+ *
+ * Callers that are over a limit are turned away at once rather than queued; they should
+ * fall back to whatever can be served locally.
+ */
+class FetchLimiter {
+
+    private final int mMaxTotal;
+    private final int mMaxPerCaller;
+
+    private int mTotal;
+    private final HashMap<Object, Integer> mPerCaller = new HashMap<Object, Integer>();
+
+    private int mRejectedCount;
+
+    /**
+     * @param maxTotal The most fetches that may run at once.
+     * @param maxPerCaller The most fetches that may run at once for any one caller.
+     */
+    public FetchLimiter(int maxTotal, int maxPerCaller) {
+        mMaxTotal = maxTotal;
+        mMaxPerCaller = maxPerCaller;
+    }
+
+    /**
+     * Takes a slot for a fetch, if one is free. Each successful call must be matched by
+     * a call to {@link #release(Object)}.
+     *
+     * @param caller Identifies who the fetch is for.
+     * @return false if the fetch should not be made.
+     */
+    public synchronized boolean tryAcquire(Object caller) {
+        Integer count = mPerCaller.get(caller);
+        int callerCount = count == null ? 0 : count;
+        if (mTotal >= mMaxTotal || callerCount >= mMaxPerCaller) {
+            mRejectedCount++;
+            return false;
+        }
+        mTotal++;
+        mPerCaller.put(caller, callerCount + 1);
+        return true;
+    }
+
+    /**
+     * Checks whether no fetches are running.
+     */
+    public synchronized boolean isIdle() {
+        return mTotal == 0;
+    }
+
+    public synchronized void release(Object caller) {
+        Integer count = mPerCaller.get(caller);
+        if (count == null) {
+            throw new IllegalStateException("Not acquired by " + caller);
+        }
+        mTotal--;
+        if (count == 1) {
+            mPerCaller.remove(caller);
+        } else {
+            mPerCaller.put(caller, count - 1);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FetchLimiter{running=" + mTotal + "/" + mMaxTotal
+                + ", callers=" + mPerCaller.size()
+                + ", rejected=" + mRejectedCount + "}";
+    }
+}
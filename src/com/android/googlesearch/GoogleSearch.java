@@ -16,25 +16,16 @@
 
 package com.android.googlesearch;
 
-import com.google.android.providers.GoogleSettings.Partner;
-
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.util.Locale;
-
 import android.app.Activity;
 import android.app.SearchManager;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.location.Location;
-import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Browser;
-import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.TimingLogger;
 
 /**
  * This class is purely here to get search queries and route them to
@@ -43,25 +34,44 @@ import android.util.Log;
 public class GoogleSearch extends Activity {
     private static final String TAG = "GoogleSearch";
 
-    // The template URL we should use to format google search requests.
-    private String googleSearchUrlBase = null;
-
     // "source" parameter for Google search requests from unknown sources (e.g. apps). This will get
     // prefixed with the string 'android-' before being sent on the wire.
     final static String GOOGLE_SEARCH_SOURCE_UNKNOWN = "unknown";
     
     private LocationUtils mLocationUtils;
+    private LocationSnapshotCache mLocationSnapshotCache;
+
+    // Builds the search urls; shared with SuggestionProvider so the url templates are only
+    // worked out once per configuration.
+    private SearchUrlBuilder mUrlBuilder;
+
+    /**
+     * Gets ready to handle a web search: works out the search url prefix and takes a location
+     * snapshot in the background, so that launching the search only has to build and send the
+     * browser intent. Called while the user is typing a query. This never blocks.
+     */
+    static void prewarm(Context context) {
+        SearchUrlBuilder.getSearchUrlBuilder(context).prewarm();
+        LocationSnapshotCache.getLocationSnapshotCache(context).refreshIfStale();
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // To see how long each step takes: adb shell setprop log.tag.GoogleSearch VERBOSE
+        TimingLogger timings = new TimingLogger(TAG, "GoogleSearch.onCreate");
         mLocationUtils = LocationUtils.getLocationUtils(this);
+        mUrlBuilder = SearchUrlBuilder.getSearchUrlBuilder(this);
+        mLocationSnapshotCache = LocationSnapshotCache.getLocationSnapshotCache(this);
+        timings.addSplit("init");
         Intent intent = getIntent();
         String action = intent != null ? intent.getAction() : null;
         if (Intent.ACTION_WEB_SEARCH.equals(action) || Intent.ACTION_SEARCH.equals(action)) {
-            handleWebSearchIntent(intent);
+            handleWebSearchIntent(intent, timings);
         }
         finish();
+        timings.addSplit("finish");
+        timings.dumpToLog();
     }
 
     /**
@@ -69,37 +79,13 @@ public class GoogleSearch extends Activity {
      * com.google.android.providers.enhancedgooglesearch.Launcher. If you are changing this
      * make sure you change both.
      */
-    private void handleWebSearchIntent(Intent intent) {
+    private void handleWebSearchIntent(Intent intent, TimingLogger timings) {
         String query = intent.getStringExtra(SearchManager.QUERY);
         if (TextUtils.isEmpty(query)) {
             Log.w(TAG, "Got search intent with no query.");
             return;
         }
 
-        if (googleSearchUrlBase == null) {
-            Locale l = Locale.getDefault();
-            String language = l.getLanguage();
-            String country = l.getCountry().toLowerCase();
-            // Chinese and Portuguese have two langauge variants.
-            if ("zh".equals(language)) {
-                if ("cn".equals(country)) {
-                    language = "zh-CN";
-                } else if ("tw".equals(country)) {
-                    language = "zh-TW";
-                }
-            } else if ("pt".equals(language)) {
-                if ("br".equals(country)) {
-                    language = "pt-BR";
-                } else if ("pt".equals(country)) {
-                    language = "pt-PT";
-                }
-            }
-            googleSearchUrlBase = getResources().getString(
-                    R.string.google_search_base, language, country)
-                    + "client=ms-"
-                    + Partner.getString(this.getContentResolver(), Partner.CLIENT_ID);
-        }
-
         // If the caller specified a 'source' url parameter, use that and if not use default.
         Bundle appSearchData = intent.getBundleExtra(SearchManager.APP_DATA);
         String source = GOOGLE_SEARCH_SOURCE_UNKNOWN;
@@ -115,43 +101,37 @@ public class GoogleSearch extends Activity {
         if (applicationId == null) {
             applicationId = getPackageName();
         }
+        timings.addSplit("read intent");
 
-        try {
-            String searchUri = googleSearchUrlBase
-                    + "&source=android-" + source
-                    + "&q=" + URLEncoder.encode(query, "UTF-8");
-            Intent launchUriIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(searchUri));
-            launchUriIntent.putExtra(Browser.EXTRA_APPLICATION_ID, applicationId);
-            launchUriIntent.putExtra(Browser.EXTRA_POST_DATA, getLocationData());
-            launchUriIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            startActivity(launchUriIntent);
-        } catch (UnsupportedEncodingException e) {
-            Log.w(TAG, "Error", e);
+        long start = SearchStats.start();
+        String searchUri = mUrlBuilder.buildSearchUrl(source, query);
+        timings.addSplit("build url");
+        start = SearchStats.time(SearchStats.SEARCH_BUILD_URL, start);
+        byte[] locationData = getLocationData();
+        timings.addSplit("location");
+        start = SearchStats.time(SearchStats.SEARCH_LOCATION, start);
+        Intent launchUriIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(searchUri));
+        launchUriIntent.putExtra(Browser.EXTRA_APPLICATION_ID, applicationId);
+        launchUriIntent.putExtra(Browser.EXTRA_POST_DATA, locationData);
+        launchUriIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        startActivity(launchUriIntent);
+        timings.addSplit("start activity");
+        SearchStats.time(SearchStats.SEARCH_LAUNCH, start);
+        // The history is only suggested from, and so only kept, while the user has web
+        // suggestions on.
+        if (SettingsMonitor.getSettingsMonitor(this).getState().mShowWebSuggestions) {
+            QueryHistory.getQueryHistory(this).addQuery(query);
         }
     }
     
     private byte[] getLocationData() {
-        byte[] postData = null;
-        ContentResolver cr = getContentResolver();
-        
-        // Don't send any location if the system does not have GoogleSettingsProvider.
-        if (!mLocationUtils.systemHasGoogleSettingsProvider()) return postData;
-        
-        if (!mLocationUtils.userRespondedToLocationOptIn()) {
+        // The snapshot is normally taken ahead of time, while the user was typing the query.
+        LocationSnapshotCache.Snapshot snapshot = mLocationSnapshotCache.getSnapshot();
+        if (snapshot.mShowOptIn) {
             // Bring up the consent dialog if it the user has yet responded to it. We
             // will not send the location info for this query.
             mLocationUtils.showLocationOptIn();
-        } else if (mLocationUtils.userAcceptedLocationOptIn() &&
-                Settings.Secure.isLocationProviderEnabled(cr, LocationManager.NETWORK_PROVIDER)) {
-            Location location = ((LocationManager) getSystemService(
-                    Context.LOCATION_SERVICE)).getLastKnownLocation(
-                            LocationManager.NETWORK_PROVIDER);
-            if (location != null) {
-                StringBuilder str = new StringBuilder("action=devloc&sll=");
-                str.append(location.getLatitude()).append(',').append(location.getLongitude());
-                postData = str.toString().getBytes();
-            }
         }
-        return postData;
+        return snapshot.mPostData;
     }
 }
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps track of the suggest requests that are currently running, so that:
+ * <ul>
+ * <li>concurrent requests for the same query share one network call,</li>
+ * <li>a request nobody is waiting for any more (because every session that asked for it
+ * has since typed something else) is aborted, and</li>
+ * <li>optionally, a new request is held back for a short, adaptive debounce window in
+ * case the user is still typing.</li>
+ * </ul>
+ *
+ * A session is whatever identifies one stream of keystrokes, e.g. the calling process.
+ */
+class InFlightRequests {
+
+    // Sessions are only tracked for a handful of recent callers. When one is dropped, the
+    // requests that only it was waiting for are aborted, as if it had moved on.
+    private static final int MAX_SESSIONS = 16;
+
+    // Weight given to the latest inter-keystroke interval in the moving average.
+    private static final float INTERVAL_SMOOTHING = 0.3f;
+
+    /**
+     * Does the actual network fetch for a request.
+     */
+    public interface Fetcher {
+        /**
+         * Fetches the suggestions. Implementations should register their http request with
+         * {@link Request#addMethod(HttpUriRequest)} so that it can be aborted.
+         *
+         * @return The suggestions, or null on failure.
+         */
+        Suggestions fetch(Request request);
+    }
+
+    private final long mJoinTimeoutMillis;
+
+    // Running requests, by cache key.
+    private final HashMap<String, Request> mRequests = new HashMap<String, Request>();
+
+    // In order of last use.
+    private final LinkedHashMap<Object, Session> mSessions =
+            new LinkedHashMap<Object, Session>(MAX_SESSIONS, 0.75f, true);
+
+    private int mStartedCount;
+    private int mJoinedCount;
+    private int mAbortedCount;
+    private int mDebouncedCount;
+
+    /**
+     * @param joinTimeoutMillis How long a caller waits for an identical running request.
+     */
+    public InFlightRequests(long joinTimeoutMillis) {
+        mJoinTimeoutMillis = joinTimeoutMillis;
+    }
+
+    /**
+     * Records that a session has asked for the given query. Any running request the session
+     * was waiting for, and that no other session wants, is aborted.
+     */
+    public void onQuery(Object session, String key) {
+        ArrayList<Request> superseded = new ArrayList<Request>(1);
+        synchronized (this) {
+            Session s = mSessions.get(session);
+            if (s == null) {
+                s = new Session();
+                mSessions.put(session, s);
+                if (mSessions.size() > MAX_SESSIONS) {
+                    Iterator<Object> eldest = mSessions.keySet().iterator();
+                    Object evicted = eldest.next();
+                    eldest.remove();
+                    removeSession(evicted, null, superseded);
+                }
+            }
+            s.onQuery(key);
+            notifyAll();    // wake up any request from this session that is debouncing
+            removeSession(session, key, superseded);
+            mAbortedCount += superseded.size();
+        }
+        for (Request request : superseded) {
+            request.abort();
+        }
+    }
+
+    /**
+     * Takes a session off the running requests other than the one for the given key, and
+     * collects those that no session wants any more.
+     *
+     * @param key The key of the request to leave the session on, or null.
+     */
+    private void removeSession(Object session, String key, ArrayList<Request> unwanted) {
+        for (Request request : mRequests.values()) {
+            if (!request.mKey.equals(key) && request.mSessions.remove(session)
+                    && request.mSessions.isEmpty()) {
+                unwanted.add(request);
+            }
+        }
+    }
+
+    /**
+     * Gets the suggestions for a query, either by joining an identical running request or
+     * by running the fetcher.
+     *
+     * @param maxDebounceMillis The longest a new request may be held back waiting for
+     *        further keystrokes, or 0 to disable debouncing.
+     * @return The suggestions, or null if they could not be fetched or the session has
+     *         moved on to another query in the meantime.
+     */
+    public Suggestions execute(Object session, String key, long maxDebounceMillis,
+            Fetcher fetcher) {
+        Request request;
+        synchronized (this) {
+            if (isSuperseded(session, key)) {
+                return null;
+            }
+            request = mRequests.get(key);
+            if (request != null) {
+                request.mSessions.add(session);
+                mJoinedCount++;
+            }
+        }
+        if (request != null) {
+            return request.await(mJoinTimeoutMillis);
+        }
+
+        if (!debounce(session, key, maxDebounceMillis)) {
+            return null;
+        }
+
+        boolean isOwner = false;
+        synchronized (this) {
+            request = mRequests.get(key);
+            if (request != null) {
+                // Someone else started the same request while we were debouncing.
+                request.mSessions.add(session);
+                mJoinedCount++;
+            } else {
+                request = new Request(key);
+                request.mSessions.add(session);
+                mRequests.put(key, request);
+                mStartedCount++;
+                isOwner = true;
+            }
+        }
+        if (!isOwner) {
+            return request.await(mJoinTimeoutMillis);
+        }
+
+        Suggestions suggestions = null;
+        try {
+            suggestions = fetcher.fetch(request);
+        } finally {
+            synchronized (this) {
+                mRequests.remove(key);
+            }
+            request.complete(suggestions);
+        }
+        return suggestions;
+    }
+
+    /**
+     * Holds back a new request while the session's recent typing speed suggests another
+     * keystroke is imminent.
+     *
+     * @return false if the session moved on to another query while we waited.
+     */
+    private synchronized boolean debounce(Object session, String key, long maxDebounceMillis) {
+        Session s = mSessions.get(session);
+        if (maxDebounceMillis <= 0 || s == null) {
+            return true;
+        }
+        long delay = s.getDebounceMillis(maxDebounceMillis);
+        long until = SystemClock.uptimeMillis() + delay;
+        while (delay > 0 && !isSuperseded(session, key)) {
+            try {
+                wait(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            delay = until - SystemClock.uptimeMillis();
+        }
+        if (isSuperseded(session, key)) {
+            mDebouncedCount++;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isSuperseded(Object session, String key) {
+        Session s = mSessions.get(session);
+        return s != null && !key.equals(s.mLatestKey);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "InFlightRequests{running=" + mRequests.size()
+                + ", started=" + mStartedCount
+                + ", joined=" + mJoinedCount
+                + ", aborted=" + mAbortedCount
+                + ", debounced=" + mDebouncedCount + "}";
+    }
+
+    /**
+     * A running suggest request, possibly shared by several sessions.
+     */
+    public static class Request {
+        private final String mKey;
+
+        // Guarded by the InFlightRequests lock.
+        private final ArrayList<Object> mSessions = new ArrayList<Object>(1);
+
+        private final ArrayList<HttpUriRequest> mMethods = new ArrayList<HttpUriRequest>(1);
+        private boolean mAborted;
+        private boolean mDone;
+        private Suggestions mResult;
+
+        Request(String key) {
+            mKey = key;
+        }
+
+        /**
+         * Registers an http request doing the fetch, so that it can be aborted. There may
+         * be more than one, e.g. when a slow request is hedged.
+         *
+         * @return false if the request has already been aborted and should not be sent.
+         */
+        public synchronized boolean addMethod(HttpUriRequest method) {
+            mMethods.add(method);
+            return !mAborted;
+        }
+
+        public synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        void abort() {
+            HttpUriRequest[] methods;
+            synchronized (this) {
+                if (mDone || mAborted) {
+                    return;
+                }
+                mAborted = true;
+                methods = mMethods.toArray(new HttpUriRequest[mMethods.size()]);
+            }
+            for (HttpUriRequest method : methods) {
+                method.abort();
+            }
+        }
+
+        synchronized void complete(Suggestions result) {
+            mResult = result;
+            mDone = true;
+            notifyAll();
+        }
+
+        synchronized Suggestions await(long timeoutMillis) {
+            long until = SystemClock.uptimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (!mDone && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                remaining = until - SystemClock.uptimeMillis();
+            }
+            return mResult;
+        }
+    }
+
+    private static class Session {
+        String mLatestKey;
+        long mLastQueryTime;
+        long mAverageInterval;
+
+        void onQuery(String key) {
+            long now = SystemClock.uptimeMillis();
+            if (mLastQueryTime > 0) {
+                long interval = now - mLastQueryTime;
+                mAverageInterval = mAverageInterval == 0 ? interval
+                        : (long) (INTERVAL_SMOOTHING * interval
+                                + (1 - INTERVAL_SMOOTHING) * mAverageInterval);
+            }
+            mLastQueryTime = now;
+            mLatestKey = key;
+        }
+
+        /**
+         * Only fast typists are debounced, and only for about as long as they usually take
+         * between keystrokes.
+         */
+        long getDebounceMillis(long maxDebounceMillis) {
+            if (mAverageInterval == 0 || mAverageInterval > maxDebounceMillis) {
+                return 0;
+            }
+            return mAverageInterval;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A histogram of durations that can be recorded into from any thread without locking. The
+ * unit is up to the caller.
+ *
+ * Values below 4 get a bucket each. Above that, each power of two is split into four
+ * buckets, so a reported value is within 25% of the true one, and values below 2^33 (over
+ * two hours in microseconds) fit into 129 buckets.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 32;
+
+    // The last bucket is for everything too large for the others.
+    private static final int BUCKET_COUNT = SUB_BUCKETS * MAX_EXPONENT + 1;
+
+    private final AtomicIntegerArray mBuckets = new AtomicIntegerArray(BUCKET_COUNT);
+
+    public void record(long value) {
+        mBuckets.incrementAndGet(getBucket(value));
+    }
+
+    public int getCount() {
+        int count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Gets an upper bound on a percentile of the recorded values.
+     *
+     * @param percentile Between 0 and 100.
+     * @return The value, or -1 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile) {
+        int[] counts = new int[BUCKET_COUNT];
+        int total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return getUpperBound(i);
+            }
+        }
+        return getUpperBound(BUCKET_COUNT - 1);
+    }
+
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (exponent - 1) + subBucket;
+    }
+
+    /**
+     * Gets the largest value that falls into a bucket.
+     */
+    static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = bucket / SUB_BUCKETS + 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " p50=" + getPercentile(50)
+                + " p90=" + getPercentile(90)
+                + " p99=" + getPercentile(99)
+                + " max=" + getPercentile(100);
+    }
+}
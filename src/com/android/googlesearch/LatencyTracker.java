@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Keeps the most recent request latencies seen on each kind of network, so that timeouts
+ * can follow what the current network can actually do.
+ */
+class LatencyTracker {
+
+    // How many of the most recent samples are kept for each network.
+    private static final int MAX_SAMPLES = 64;
+
+    // Percentiles are not reported until there are this many samples.
+    private static final int MIN_SAMPLES = 8;
+
+    private final HashMap<String, Samples> mSamples = new HashMap<String, Samples>();
+
+    private static class Samples {
+        final int[] mValues = new int[MAX_SAMPLES];
+        int mCount;
+        int mNext;
+        long mLastTime;
+    }
+
+    /**
+     * Records how long a request took.
+     *
+     * @param network Identifies the kind of network the request went over.
+     */
+    public synchronized void addSample(String network, long millis) {
+        Samples samples = mSamples.get(network);
+        if (samples == null) {
+            samples = new Samples();
+            mSamples.put(network, samples);
+        }
+        samples.mValues[samples.mNext] = (int) Math.min(millis, Integer.MAX_VALUE);
+        samples.mNext = (samples.mNext + 1) % MAX_SAMPLES;
+        if (samples.mCount < MAX_SAMPLES) {
+            samples.mCount++;
+        }
+        samples.mLastTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Gets the most recent latency on a network.
+     *
+     * @return The latency in milliseconds, or -1 if there are no samples.
+     */
+    public synchronized int getLastSample(String network) {
+        Samples samples = mSamples.get(network);
+        if (samples == null) {
+            return -1;
+        }
+        return samples.mValues[(samples.mNext + MAX_SAMPLES - 1) % MAX_SAMPLES];
+    }
+
+    /**
+     * Gets when the most recent latency on a network was recorded.
+     *
+     * @return The time in {@link SystemClock#uptimeMillis()}, or -1 if there are no samples.
+     */
+    public synchronized long getLastSampleTime(String network) {
+        Samples samples = mSamples.get(network);
+        return samples == null ? -1 : samples.mLastTime;
+    }
+
+    /**
+     * Gets a percentile of the recent latencies on a network.
+     *
+     * @param percentile Between 0 and 100.
+     * @return The latency in milliseconds, or -1 if there are too few samples yet.
+     */
+    public synchronized int getPercentile(String network, int percentile) {
+        Samples samples = mSamples.get(network);
+        if (samples == null || samples.mCount < MIN_SAMPLES) {
+            return -1;
+        }
+        int[] sorted = new int[samples.mCount];
+        System.arraycopy(samples.mValues, 0, sorted, 0, samples.mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder("LatencyTracker{");
+        for (String network : mSamples.keySet()) {
+            str.append(network).append(": p50=").append(getPercentile(network, 50))
+                    .append(", p95=").append(getPercentile(network, 95)).append("; ");
+        }
+        return str.append('}').toString();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.Settings;
+
+/**
+ * Keeps a recent snapshot of the location information sent along with web searches, i.e.
+ * whether the user still has to be shown the location opt-in and, if they have accepted it,
+ * the "action=devloc&sll=..." post data for the last known coarse location.
+ *
+ * Snapshots are taken on the {@link BackgroundThread}, ahead of time (e.g. while the user is
+ * typing into the search dialog), so that launching a search does not have to check settings
+ * or talk to the location manager. A snapshot is thrown away as soon as any of the location
+ * settings it depends on change. For the settings held by {@link SettingsMonitor}, this is
+ * only once the monitor has read the new values, so that no snapshot can be taken from the
+ * old ones afterwards.
+ */
+public class LocationSnapshotCache {
+
+    private final Context mContext;
+    private final LocationUtils mLocationUtils;
+    private final long mMaxAgeMillis;
+
+    private final Handler mHandler;
+
+    // The current snapshot, or null if there is none or it was invalidated.
+    private volatile Snapshot mSnapshot;
+
+    // Counts invalidations, so that a snapshot taken before one is not kept after it.
+    private int mGeneration;
+
+    // Whether a background refresh has been posted and not yet run.
+    private boolean mRefreshPending;
+
+    // The singleton object.
+    private static LocationSnapshotCache sLocationSnapshotCache;
+
+    /**
+     * The location information to send with a search.
+     */
+    public static class Snapshot {
+        /**
+         * Whether the user has yet to respond to the location opt-in, in which case it
+         * should be shown and no location sent.
+         */
+        public final boolean mShowOptIn;
+
+        /**
+         * The encoded location to post with the search, or null to send none.
+         */
+        public final byte[] mPostData;
+
+        final long mTakenAt;
+
+        Snapshot(boolean showOptIn, byte[] postData) {
+            mShowOptIn = showOptIn;
+            mPostData = postData;
+            mTakenAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Gets the singleton.
+     */
+    public static synchronized LocationSnapshotCache getLocationSnapshotCache(Context context) {
+        if (sLocationSnapshotCache == null) {
+            sLocationSnapshotCache = new LocationSnapshotCache(context.getApplicationContext());
+        }
+        return sLocationSnapshotCache;
+    }
+
+    /**
+     * Private constructor for singleton class; use
+     * {@link #getLocationSnapshotCache(Context)}.
+     */
+    private LocationSnapshotCache(Context context) {
+        mContext = context;
+        mLocationUtils = LocationUtils.getLocationUtils(context);
+        mMaxAgeMillis = context.getResources().getInteger(
+                R.integer.location_snapshot_max_age_seconds) * 1000L;
+
+        mHandler = BackgroundThread.getHandler();
+
+        SettingsMonitor.getSettingsMonitor(context).addListener(new SettingsMonitor.Listener() {
+            public void onSettingsChanged(SettingsMonitor.State state) {
+                invalidate();
+            }
+        });
+        // Whether the network location provider is enabled is read directly, not through
+        // SettingsMonitor.
+        ContentObserver observer = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        context.getContentResolver().registerContentObserver(Settings.Secure.getUriFor(
+                Settings.Secure.LOCATION_PROVIDERS_ALLOWED), false, observer);
+    }
+
+    /**
+     * Gets the current snapshot, taking one synchronously only if there is no recent one.
+     * Either way, a fresh snapshot is taken in the background for the next caller.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null || isStale(snapshot)) {
+            int generation = getGeneration();
+            snapshot = takeSnapshot();
+            setSnapshot(snapshot, generation);
+        }
+        refreshInBackground();
+        return snapshot;
+    }
+
+    /**
+     * Takes a new snapshot on the background thread if the current one is missing or stale.
+     * This never blocks.
+     */
+    public void refreshIfStale() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null || isStale(snapshot)) {
+            refreshInBackground();
+        }
+    }
+
+    private synchronized void refreshInBackground() {
+        if (mRefreshPending) {
+            return;
+        }
+        mRefreshPending = true;
+        mHandler.post(new Runnable() {
+            public void run() {
+                int generation;
+                synchronized (LocationSnapshotCache.this) {
+                    mRefreshPending = false;
+                    generation = mGeneration;
+                }
+                setSnapshot(takeSnapshot(), generation);
+            }
+        });
+    }
+
+    private synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    private synchronized void invalidate() {
+        mGeneration++;
+        mSnapshot = null;
+    }
+
+    /**
+     * Keeps a snapshot, unless the settings have changed since it was started.
+     */
+    private synchronized void setSnapshot(Snapshot snapshot, int generation) {
+        if (generation == mGeneration) {
+            mSnapshot = snapshot;
+        }
+    }
+
+    private boolean isStale(Snapshot snapshot) {
+        return SystemClock.elapsedRealtime() - snapshot.mTakenAt >= mMaxAgeMillis;
+    }
+
+    private Snapshot takeSnapshot() {
+        // Don't send any location if the system does not have GoogleSettingsProvider.
+        if (!mLocationUtils.systemHasGoogleSettingsProvider()) {
+            return new Snapshot(false, null);
+        }
+        if (!mLocationUtils.userRespondedToLocationOptIn()) {
+            // Bring up the consent dialog if the user has yet to respond to it. We
+            // will not send the location info for this query.
+            return new Snapshot(true, null);
+        }
+        byte[] postData = null;
+        if (mLocationUtils.userAcceptedLocationOptIn() &&
+                Settings.Secure.isLocationProviderEnabled(mContext.getContentResolver(),
+                        LocationManager.NETWORK_PROVIDER)) {
+            Location location = ((LocationManager) mContext.getSystemService(
+                    Context.LOCATION_SERVICE)).getLastKnownLocation(
+                            LocationManager.NETWORK_PROVIDER);
+            if (location != null) {
+                postData = SearchEncoding.encodeLocation(location.getLatitude(),
+                        location.getLongitude());
+            }
+        }
+        return new Snapshot(false, postData);
+    }
+}
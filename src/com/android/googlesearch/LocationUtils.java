@@ -18,13 +18,14 @@ package com.android.googlesearch;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 
 /**
- * Utility methods for dealing with location (such as opt-in stuff).
+ * Utility methods for dealing with location (such as opt-in stuff). The settings are read
+ * from the {@link SettingsMonitor}, so these are cheap enough to call on every search.
  */
 public class LocationUtils {
     private Context mContext;
+    private SettingsMonitor mSettings;
     
     // The singleton object.
     private static LocationUtils sLocationUtils;
@@ -34,7 +35,7 @@ public class LocationUtils {
      */
     public static synchronized LocationUtils getLocationUtils(Context context) {
         if (sLocationUtils == null) {
-            sLocationUtils = new LocationUtils(context);
+            sLocationUtils = new LocationUtils(context.getApplicationContext());
         }
         return sLocationUtils;
     }
@@ -44,6 +45,7 @@ public class LocationUtils {
      */
     private LocationUtils(Context context) {
         mContext = context;
+        mSettings = SettingsMonitor.getSettingsMonitor(context);
     }
     
     /**
@@ -52,12 +54,7 @@ public class LocationUtils {
      * using location.
      */
     public boolean systemHasGoogleSettingsProvider() {
-        try {
-            return mContext.getPackageManager().getPackageInfo(
-                    "com.google.android.providers.settings", 0) != null;
-        } catch (PackageManager.NameNotFoundException e) {
-            return false;
-        }
+        return mSettings.getState().mHasGoogleSettingsProvider;
     }
 
     /**
@@ -65,8 +62,7 @@ public class LocationUtils {
      * Google location opt-in.
      */
     public boolean userRespondedToLocationOptIn() {
-        return android.provider.Settings.Secure.getInt(mContext.getContentResolver(),
-                android.provider.Settings.Secure.USE_LOCATION_FOR_SERVICES, 2) != 2;
+        return mSettings.getState().mUseLocation != 2;
     }
     
     /**
@@ -94,11 +90,7 @@ public class LocationUtils {
      * {@link #userRespondedToLocationOptIn()} to distinguish between these two cases.
      */
     public boolean userAcceptedLocationOptIn() {
-        if (systemHasGoogleSettingsProvider()) {
-            return android.provider.Settings.Secure.getInt(mContext.getContentResolver(),
-                    android.provider.Settings.Secure.USE_LOCATION_FOR_SERVICES, 2) == 1;
-        } else {
-            return false;
-        }
+        SettingsMonitor.State state = mSettings.getState();
+        return state.mHasGoogleSettingsProvider && state.mUseLocation == 1;
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.os.SystemClock;
+
+/**
+ * Limits how many speculative requests, and how many bytes of responses to them (as
+ * estimated by {@link Suggestions#sizeInBytes()}), may be spent in each minute.
+ */
+class PrefetchBudget {
+
+    private static final long WINDOW_MILLIS = 60 * 1000;
+
+    private final int mMaxRequests;
+    private final int mMaxBytes;
+
+    private long mWindowStart;
+    private int mRequests;
+    private int mBytes;
+
+    private int mDeniedCount;
+
+    /**
+     * @param maxRequests The most requests per minute.
+     * @param maxBytes The most response bytes per minute.
+     */
+    public PrefetchBudget(int maxRequests, int maxBytes) {
+        mMaxRequests = maxRequests;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Spends one request from the budget, if there is any left.
+     *
+     * @return false if the request should not be made.
+     */
+    public synchronized boolean tryRequest() {
+        startWindowIfDue();
+        if (mRequests >= mMaxRequests || mBytes >= mMaxBytes) {
+            mDeniedCount++;
+            return false;
+        }
+        mRequests++;
+        return true;
+    }
+
+    /**
+     * Charges the size of a response to the budget.
+     */
+    public synchronized void addBytes(int bytes) {
+        startWindowIfDue();
+        mBytes += bytes;
+    }
+
+    private void startWindowIfDue() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mWindowStart >= WINDOW_MILLIS) {
+            mWindowStart = now;
+            mRequests = 0;
+            mBytes = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PrefetchBudget{requests=" + mRequests + "/" + mMaxRequests
+                + ", bytes=" + mBytes + "/" + mMaxBytes
+                + ", denied=" + mDeniedCount + "}";
+    }
+}
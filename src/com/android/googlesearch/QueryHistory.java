@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The queries the user has searched for on this device, for suggesting them again.
+ *
+ * Queries are indexed by their normalized form in a sorted array, so a prefix lookup is a
+ * binary search followed by a short scan. Matches are ranked by how often and how recently
+ * they were searched for. The history is bounded, dropping the lowest ranked queries first,
+ * and is saved to a small file on the {@link BackgroundThread}.
+ */
+public class QueryHistory {
+
+    private static final String LOG_TAG = "GoogleSearch";
+
+    private static final String FILE_NAME = "query_history";
+    private static final int FILE_VERSION = 1;
+
+    // A query's weight halves for every week since it was last searched for.
+    private static final double HALF_LIFE_MILLIS = 7 * 24 * 60 * 60 * 1000.0;
+
+    private final Context mContext;
+    private final int mMaxEntries;
+
+    // By normalized query.
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    // The keys of mEntries, sorted; null when it needs rebuilding.
+    private String[] mSortedKeys;
+
+    private boolean mLoaded;
+
+    // The singleton object.
+    private static QueryHistory sQueryHistory;
+
+    private static class Entry {
+        String mQuery;
+        int mCount;
+        long mLastUsed;
+
+        Entry(String query, int count, long lastUsed) {
+            mQuery = query;
+            mCount = count;
+            mLastUsed = lastUsed;
+        }
+
+        double score(long now) {
+            return mCount * Math.pow(0.5, Math.max(0, now - mLastUsed) / HALF_LIFE_MILLIS);
+        }
+    }
+
+    /**
+     * Gets the singleton.
+     */
+    public static synchronized QueryHistory getQueryHistory(Context context) {
+        if (sQueryHistory == null) {
+            sQueryHistory = new QueryHistory(context.getApplicationContext());
+        }
+        return sQueryHistory;
+    }
+
+    /**
+     * Private constructor for singleton class; use {@link #getQueryHistory(Context)}.
+     */
+    private QueryHistory(Context context) {
+        mContext = context;
+        mMaxEntries = context.getResources().getInteger(R.integer.query_history_max_entries);
+    }
+
+    /**
+     * Records that the user searched for a query. The work, including loading the history
+     * if needed, is done on the {@link BackgroundThread}.
+     */
+    public void addQuery(final String query) {
+        BackgroundThread.getHandler().post(new Runnable() {
+            public void run() {
+                synchronized (QueryHistory.this) {
+                    add(query, System.currentTimeMillis());
+                }
+                save();
+            }
+        });
+    }
+
+    /**
+     * Forgets every query, and deletes the saved history, returning once that is done.
+     * Like {@link #addQuery(String)}, the work is done on the {@link BackgroundThread}, so
+     * queries added before it are forgotten too.
+     */
+    public void clear() {
+        FutureTask<Void> clear = new FutureTask<Void>(new Runnable() {
+            public void run() {
+                synchronized (QueryHistory.this) {
+                    mEntries.clear();
+                    mSortedKeys = null;
+                    // Nothing to read back either.
+                    mLoaded = true;
+                }
+                getFile().delete();
+            }
+        }, null);
+        Handler handler = BackgroundThread.getHandler();
+        if (Looper.myLooper() == handler.getLooper()) {
+            // Queries added before this have been handled already.
+            clear.run();
+            return;
+        }
+        handler.post(clear);
+        try {
+            clear.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Loads the history ahead of its first use. This reads a file, so it should not be
+     * called on the main thread.
+     */
+    public synchronized void prewarm() {
+        load();
+    }
+
+    /**
+     * Gets the past queries that start with the given prefix, best first.
+     *
+     * @param max The most queries to return.
+     */
+    public synchronized Suggestions getSuggestions(String prefix, int max) {
+        load();
+        String normalized = SuggestionCache.normalizeQuery(prefix);
+        String[] keys = getSortedKeys();
+        int i = Arrays.binarySearch(keys, normalized);
+        if (i < 0) {
+            i = -(i + 1);
+        }
+        ArrayList<Entry> matches = new ArrayList<Entry>();
+        for (; i < keys.length && keys[i].startsWith(normalized); i++) {
+            matches.add(mEntries.get(keys[i]));
+        }
+        sortByScore(matches, System.currentTimeMillis());
+        int count = Math.min(max, matches.size());
+        String[] queries = new String[count];
+        for (int j = 0; j < count; j++) {
+            queries[j] = matches.get(j).mQuery;
+        }
+        return new Suggestions(queries, new String[0]);
+    }
+
+    private void add(String query, long now) {
+        load();
+        String key = SuggestionCache.normalizeQuery(query);
+        if (key.length() == 0) {
+            return;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            entry.mQuery = query.trim();
+            entry.mCount++;
+            entry.mLastUsed = now;
+            return;
+        }
+        mEntries.put(key, new Entry(query.trim(), 1, now));
+        mSortedKeys = null;
+        trim(now);
+    }
+
+    /**
+     * Drops the lowest ranked queries once there are too many.
+     */
+    private void trim(long now) {
+        if (mEntries.size() <= mMaxEntries) {
+            return;
+        }
+        ArrayList<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        sortByScore(entries, now);
+        for (int i = mMaxEntries; i < entries.size(); i++) {
+            mEntries.remove(SuggestionCache.normalizeQuery(entries.get(i).mQuery));
+        }
+        mSortedKeys = null;
+    }
+
+    private String[] getSortedKeys() {
+        if (mSortedKeys == null) {
+            mSortedKeys = mEntries.keySet().toArray(new String[mEntries.size()]);
+            Arrays.sort(mSortedKeys);
+        }
+        return mSortedKeys;
+    }
+
+    private static void sortByScore(ArrayList<Entry> entries, final long now) {
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return Double.compare(b.score(now), a.score(now));
+            }
+        });
+    }
+
+    private File getFile() {
+        return new File(mContext.getFilesDir(), FILE_NAME);
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(getFile())));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String query = in.readUTF();
+                mEntries.put(SuggestionCache.normalizeQuery(query),
+                        new Entry(query, in.readInt(), in.readLong()));
+            }
+        } catch (FileNotFoundException e) {
+            // No history yet.
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error reading query history", e);
+        } finally {
+            closeQuietly(in);
+        }
+        mSortedKeys = null;
+    }
+
+    /**
+     * Writes the history to a new file, then renames it over the old one so that a crash
+     * never leaves a half-written history behind.
+     */
+    private void save() {
+        ArrayList<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<Entry>(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                entries.add(new Entry(entry.mQuery, entry.mCount, entry.mLastUsed));
+            }
+        }
+        File file = getFile();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.mQuery);
+                out.writeInt(entry.mCount);
+                out.writeLong(entry.mLastUsed);
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(LOG_TAG, "Could not save query history");
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error writing query history", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import java.util.Locale;
+
+/**
+ * Encodes what is sent with searches and suggest requests: the locale and query parameters
+ * of the urls, and the location posted with a search. This uses no framework classes, so
+ * that it can be measured on the host, see benchmarks/.
+ */
+class SearchEncoding {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private SearchEncoding() {
+    }
+
+    /**
+     * Gets the hl and gl parameter values for a locale.
+     *
+     * NOTE:  This code uses resources to optionally select the search Uri, based on the
+     * MCC value from the SIM.  The default string will most likely be fine.  It is
+     * parameterized to accept info from the Locale, the language code is the first
+     * parameter (%1$s) and the country code is the second (%2$s).  This code *must*
+     * function in the same way as a similar lookup in
+     * com.android.browser.BrowserActivity#onCreate().  If you change
+     * either of these functions, change them both.  (The same is true for the underlying
+     * resource strings, which are stored in mcc-specific xml files.)
+     */
+    static String[] getLanguageAndCountry(Locale l) {
+        String language = l.getLanguage();
+        String country = l.getCountry().toLowerCase();
+        // Chinese and Portuguese have two langauge variants.
+        if ("zh".equals(language)) {
+            if ("cn".equals(country)) {
+                language = "zh-CN";
+            } else if ("tw".equals(country)) {
+                language = "zh-TW";
+            }
+        } else if ("pt".equals(language)) {
+            if ("br".equals(country)) {
+                language = "pt-BR";
+            } else if ("pt".equals(country)) {
+                language = "pt-PT";
+            }
+        }
+        return new String[] { language, country };
+    }
+
+    /**
+     * Appends a query to a url, encoded the same way as
+     * {@link java.net.URLEncoder#encode(String, String)} with UTF-8, but without the
+     * intermediate strings and byte arrays.
+     */
+    static void appendEncoded(StringBuilder out, String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                out.append(c);
+            } else if (c == ' ') {
+                out.append('+');
+            } else if (c < 0x80) {
+                appendEscaped(out, c);
+            } else if (c < 0x800) {
+                appendEscaped(out, 0xc0 | (c >> 6));
+                appendEscaped(out, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                appendEscaped(out, 0xf0 | (codePoint >> 18));
+                appendEscaped(out, 0x80 | ((codePoint >> 12) & 0x3f));
+                appendEscaped(out, 0x80 | ((codePoint >> 6) & 0x3f));
+                appendEscaped(out, 0x80 | (codePoint & 0x3f));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                // An unpaired surrogate; URLEncoder writes a '?' for these.
+                appendEscaped(out, '?');
+            } else {
+                appendEscaped(out, 0xe0 | (c >> 12));
+                appendEscaped(out, 0x80 | ((c >> 6) & 0x3f));
+                appendEscaped(out, 0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private static void appendEscaped(StringBuilder out, int b) {
+        out.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+    }
+
+    /**
+     * Encodes a location as the post data sent with a search.
+     */
+    static byte[] encodeLocation(double latitude, double longitude) {
+        StringBuilder str = new StringBuilder(48).append("action=devloc&sll=");
+        str.append(latitude).append(',').append(longitude);
+        return str.toString().getBytes();
+    }
+}
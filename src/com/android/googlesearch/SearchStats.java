@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide timings of the stages of serving suggestions and launching searches, and
+ * counts of how requests turned out. Recording never takes a lock.
+ *
+ * Stages are timed with {@link System#nanoTime()} and recorded in microseconds: most of them
+ * take well under a millisecond, which a millisecond clock would record as 0 or 1.
+ */
+class SearchStats {
+
+    // Timed stages.
+    public static final int SUGGEST_QUERY = 0;          // all of SuggestionProvider.query()
+    public static final int SUGGEST_BUILD_URL = 1;
+    public static final int SUGGEST_REQUEST = 2;        // connect, send, and wait for headers
+    public static final int SUGGEST_RESPONSE = 3;       // read and parse the body
+    public static final int SUGGEST_CURSOR = 4;
+    public static final int SEARCH_BUILD_URL = 5;
+    public static final int SEARCH_LOCATION = 6;
+    public static final int SEARCH_LAUNCH = 7;
+    public static final int SUGGEST_BATCH = 8;          // all of a batch query
+    public static final int PROVIDER_CREATE = 9;        // SuggestionProvider.onCreate()
+    public static final int PROVIDER_INIT = 10;         // setting up the provider's state
+
+    private static final String[] STAGE_NAMES = {
+        "suggest query",
+        "suggest build url",
+        "suggest request",
+        "suggest response",
+        "suggest cursor",
+        "search build url",
+        "search location",
+        "search launch",
+        "suggest batch",
+        "provider create",
+        "provider init",
+    };
+
+    // Counted events.
+    public static final int CACHE_HIT = 0;
+    public static final int STORE_HIT = 1;
+    public static final int NETWORK_REQUEST = 2;
+    public static final int NOT_MODIFIED = 3;
+    public static final int HTTP_ERROR = 4;             // any status but 200 and 304
+    public static final int TIMEOUT = 5;
+    public static final int IO_ERROR = 6;               // other than timeouts
+    public static final int PARSE_ERROR = 7;
+    public static final int HEDGED = 8;
+    public static final int OFFLINE = 9;                // served from local data
+    public static final int REJECTED = 10;              // too many fetches already running
+    public static final int PREFETCHED = 11;
+    public static final int SHORT_CIRCUITED = 12;       // server failing, not asked
+    public static final int WAITED_FOR_INIT = 13;       // queries before the provider was set up
+    public static final int SLOW_NETWORK = 14;          // network too slow, not asked
+
+    private static final String[] COUNTER_NAMES = {
+        "cache hits",
+        "store hits",
+        "network requests",
+        "not modified",
+        "http errors",
+        "timeouts",
+        "io errors",
+        "parse errors",
+        "hedged requests",
+        "offline results",
+        "rejected fetches",
+        "prefetched queries",
+        "short-circuited fetches",
+        "queries waiting for init",
+        "queries skipped on slow networks",
+    };
+
+    private static final LatencyHistogram[] sStages = new LatencyHistogram[STAGE_NAMES.length];
+    private static final AtomicInteger[] sCounters = new AtomicInteger[COUNTER_NAMES.length];
+    static {
+        for (int i = 0; i < sStages.length; i++) {
+            sStages[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < sCounters.length; i++) {
+            sCounters[i] = new AtomicInteger();
+        }
+    }
+
+    private SearchStats() {
+    }
+
+    /**
+     * Gets a start time to pass to {@link #time(int, long)}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records how long a stage took.
+     *
+     * @param start When the stage started, from {@link #start()}.
+     * @return The current time, for timing the next stage.
+     */
+    public static long time(int stage, long start) {
+        long now = System.nanoTime();
+        sStages[stage].record((now - start) / 1000);
+        return now;
+    }
+
+    public static void count(int counter) {
+        sCounters[counter].incrementAndGet();
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("Stage timings (us):");
+        for (int i = 0; i < sStages.length; i++) {
+            pw.println("  " + STAGE_NAMES[i] + ": " + sStages[i]);
+        }
+        pw.println("Counters:");
+        for (int i = 0; i < sCounters.length; i++) {
+            pw.println("  " + COUNTER_NAMES[i] + ": " + sCounters[i].get());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemProperties;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Builds Google search and suggest urls. The locale- and MCC-dependent parts of the urls are
+ * worked out once and reused until the configuration changes. Search queries are encoded into
+ * a reusable buffer. Suggest urls are built on several threads at once, so each one gets a
+ * buffer of its own and they do not hold the lock while encoding.
+ */
+public class SearchUrlBuilder {
+
+    private static final String LOG_TAG = "GoogleSearch";
+
+    // If set, replaces the suggest url up to the "json=true" parameter, e.g. to point at a
+    // stand-in server on the development machine:
+    //   adb shell setprop debug.googlesearch.suggest http://10.0.2.2:8080/complete/search?
+    // It is read whenever the suggest url is built, i.e. on first use and after a
+    // configuration change.
+    private static final String SUGGEST_BASE_PROPERTY = "debug.googlesearch.suggest";
+
+    private final Context mContext;
+    private final SettingsMonitor mSettings;
+
+    // The singleton object.
+    private static SearchUrlBuilder sSearchUrlBuilder;
+
+    // The configuration the url prefixes below were built for.
+    private Locale mLocale;
+    private int mMcc;
+    private int mMnc;
+
+    // e.g. "http://www.google.com/complete/search?hl=en&gl=us&json=true&q="
+    private String mSuggestUriPrefix;
+
+    // e.g. "http://www.google.com/m?hl=en&gl=us&client=ms-android-google"
+    private String mSearchUriPrefix;
+
+    // The partner client id the search url prefix was built with.
+    private String mClientId;
+    private boolean mPrewarmPending;
+
+    // For search urls. Guarded by the lock.
+    private final StringBuilder mBuffer = new StringBuilder(128);
+
+    /**
+     * Gets the singleton.
+     */
+    public static synchronized SearchUrlBuilder getSearchUrlBuilder(Context context) {
+        if (sSearchUrlBuilder == null) {
+            sSearchUrlBuilder = new SearchUrlBuilder(context.getApplicationContext());
+        }
+        return sSearchUrlBuilder;
+    }
+
+    /**
+     * Private constructor for singleton class; use {@link #getSearchUrlBuilder(Context)}.
+     */
+    private SearchUrlBuilder(Context context) {
+        mContext = context;
+        mSettings = SettingsMonitor.getSettingsMonitor(context);
+    }
+
+    /**
+     * Gets the suggest url for the current locale, up to and including the "q=" parameter.
+     */
+    public synchronized String getSuggestUriPrefix() {
+        checkConfiguration();
+        if (mSuggestUriPrefix == null) {
+            String base = SystemProperties.get(SUGGEST_BASE_PROPERTY);
+            if (TextUtils.isEmpty(base)) {
+                String[] languageAndCountry = SearchEncoding.getLanguageAndCountry(mLocale);
+                base = mContext.getResources().getString(R.string.google_suggest_base,
+                        languageAndCountry[0], languageAndCountry[1]);
+            } else {
+                Log.i(LOG_TAG, "Using suggest url " + base);
+            }
+            mSuggestUriPrefix = base + "json=true&q=";
+        }
+        return mSuggestUriPrefix;
+    }
+
+    /**
+     * Builds the suggest url for a query. This only takes the lock to get the url prefix.
+     */
+    public String buildSuggestUrl(String query) {
+        String prefix = getSuggestUriPrefix();
+        // Room for a few escaped characters, so that most queries need no reallocation.
+        StringBuilder url = new StringBuilder(prefix.length() + query.length() + 16);
+        url.append(prefix);
+        SearchEncoding.appendEncoded(url, query);
+        return url.toString();
+    }
+
+    private String getSearchUriPrefix() {
+        String clientId = mSettings.getState().mClientId;
+        if (mSearchUriPrefix == null || !TextUtils.equals(clientId, mClientId)) {
+            mClientId = clientId;
+            String[] languageAndCountry = SearchEncoding.getLanguageAndCountry(mLocale);
+            mSearchUriPrefix = mContext.getResources().getString(R.string.google_search_base,
+                    languageAndCountry[0], languageAndCountry[1])
+                    + "client=ms-" + mClientId;
+        }
+        return mSearchUriPrefix;
+    }
+
+    /**
+     * Builds the url for a Google search.
+     *
+     * @param source The "source" parameter, which will get prefixed with "android-".
+     */
+    public synchronized String buildSearchUrl(String source, String query) {
+        checkConfiguration();
+        mBuffer.setLength(0);
+        mBuffer.append(getSearchUriPrefix())
+                .append("&source=android-").append(source).append("&q=");
+        SearchEncoding.appendEncoded(mBuffer, query);
+        return mBuffer.toString();
+    }
+
+    /**
+     * Works out the search url prefix on the {@link BackgroundThread} if it is not known
+     * yet, so that launching the search does not have to. This never blocks.
+     */
+    public synchronized void prewarm() {
+        if (mPrewarmPending || (mSearchUriPrefix != null && !configurationChanged())) {
+            return;
+        }
+        mPrewarmPending = true;
+        BackgroundThread.getHandler().post(new Runnable() {
+            public void run() {
+                synchronized (SearchUrlBuilder.this) {
+                    mPrewarmPending = false;
+                    checkConfiguration();
+                    getSearchUriPrefix();
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets the url prefixes, e.g. because the locale or SIM has changed.
+     */
+    public synchronized void invalidate() {
+        mSuggestUriPrefix = null;
+        mSearchUriPrefix = null;
+    }
+
+    /**
+     * Invalidates the url prefixes if the locale or MCC/MNC have changed since they were
+     * built. This is only a few field comparisons, so it is done on every use.
+     */
+    private void checkConfiguration() {
+        if (configurationChanged()) {
+            Configuration config = mContext.getResources().getConfiguration();
+            mLocale = Locale.getDefault();
+            mMcc = config.mcc;
+            mMnc = config.mnc;
+            invalidate();
+        }
+    }
+
+    private boolean configurationChanged() {
+        Configuration config = mContext.getResources().getConfiguration();
+        return !Locale.getDefault().equals(mLocale) || config.mcc != mMcc || config.mnc != mMnc;
+    }
+}
@@ -16,13 +16,17 @@
 
 package com.android.googlesearch;
 
+import android.content.ContentResolver;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.provider.Settings.System;
+import android.widget.Toast;
 
 /**
  * Activity for setting Google search preferences.
@@ -30,8 +34,14 @@ import android.provider.Settings.System;
 public class Settings extends PreferenceActivity implements OnPreferenceClickListener {
 
     private static final String SHOW_WEB_SUGGESTIONS_PREF = "show_web_suggestions";
+    private static final String CLEAR_HISTORY_PREF = "clear_history";
+
+    private static final Uri HISTORY_URI = Uri.parse(
+            "content://com.android.googlesearch.SuggestionProvider/"
+            + SuggestionProvider.HISTORY_PATH);
 
     private CheckBoxPreference mShowWebSuggestionsPreference;
+    private Preference mClearHistoryPreference;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -41,6 +51,8 @@ public class Settings extends PreferenceActivity implements OnPreferenceClickLis
         mShowWebSuggestionsPreference = (CheckBoxPreference)
                 findPreference(SHOW_WEB_SUGGESTIONS_PREF);
         mShowWebSuggestionsPreference.setOnPreferenceClickListener(this);
+        mClearHistoryPreference = findPreference(CLEAR_HISTORY_PREF);
+        mClearHistoryPreference.setOnPreferenceClickListener(this);
     }
 
     public synchronized boolean onPreferenceClick(Preference preference) {
@@ -50,8 +62,33 @@ public class Settings extends PreferenceActivity implements OnPreferenceClickLis
                     System.SHOW_WEB_SUGGESTIONS,
                     mShowWebSuggestionsPreference.isChecked() ? 1 : 0);
             return true;
+        } else if (preference == mClearHistoryPreference) {
+            clearHistory();
+            return true;
         }
         return false;
     }
 
+    /**
+     * Clears the search history on the {@link BackgroundThread}, since it deletes files, and
+     * says so once it is gone.
+     */
+    private void clearHistory() {
+        mClearHistoryPreference.setEnabled(false);
+        final ContentResolver resolver = getContentResolver();
+        final Handler handler = new Handler();
+        BackgroundThread.getHandler().post(new Runnable() {
+            public void run() {
+                resolver.delete(HISTORY_URI, null, null);
+                handler.post(new Runnable() {
+                    public void run() {
+                        mClearHistoryPreference.setEnabled(true);
+                        Toast.makeText(Settings.this, R.string.clear_history_done,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        });
+    }
+
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import com.google.android.providers.GoogleSettings.Partner;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.provider.Settings;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the settings that searches and suggestions depend on in memory, so that reading
+ * them is a single volatile read rather than a query to a settings provider or the package
+ * manager. The settings are read again on the {@link BackgroundThread} whenever one of them
+ * changes, or a package is installed or removed (which may add or remove
+ * GoogleSettingsProvider). Anything derived from the settings should be dropped from a
+ * {@link Listener}, which is only called once the new settings can be read.
+ */
+public class SettingsMonitor {
+
+    private static final String GOOGLE_SETTINGS_PACKAGE = "com.google.android.providers.settings";
+
+    private final Context mContext;
+
+    private final Handler mHandler;
+
+    private volatile State mState;
+
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    // Whether a reload has been posted and not yet run.
+    private boolean mReloadPending;
+
+    // The singleton object.
+    private static SettingsMonitor sSettingsMonitor;
+
+    /**
+     * An immutable snapshot of the settings.
+     */
+    public static class State {
+        /**
+         * Whether the system has GoogleSettingsProvider, without which location is not used.
+         */
+        public final boolean mHasGoogleSettingsProvider;
+
+        /**
+         * The Google location opt-in: 1 if accepted, 0 if declined, 2 if not yet answered.
+         */
+        public final int mUseLocation;
+
+        /**
+         * The partner client id, or null if there is none.
+         */
+        public final String mClientId;
+
+        /**
+         * Whether the user wants web suggestions to be shown.
+         */
+        public final boolean mShowWebSuggestions;
+
+        State(boolean hasGoogleSettingsProvider, int useLocation, String clientId,
+                boolean showWebSuggestions) {
+            mHasGoogleSettingsProvider = hasGoogleSettingsProvider;
+            mUseLocation = useLocation;
+            mClientId = clientId;
+            mShowWebSuggestions = showWebSuggestions;
+        }
+    }
+
+    /**
+     * Told about changes to the settings.
+     */
+    public interface Listener {
+        /**
+         * Called on the {@link BackgroundThread} after the settings have been read again,
+         * so {@link SettingsMonitor#getState()} already returns the new state.
+         */
+        void onSettingsChanged(State state);
+    }
+
+    /**
+     * Gets the singleton.
+     */
+    public static synchronized SettingsMonitor getSettingsMonitor(Context context) {
+        if (sSettingsMonitor == null) {
+            sSettingsMonitor = new SettingsMonitor(context.getApplicationContext());
+        }
+        return sSettingsMonitor;
+    }
+
+    /**
+     * Private constructor for singleton class; use {@link #getSettingsMonitor(Context)}.
+     */
+    private SettingsMonitor(Context context) {
+        mContext = context;
+        mHandler = BackgroundThread.getHandler();
+
+        ContentObserver observer = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                reloadInBackground();
+            }
+        };
+        ContentResolver cr = context.getContentResolver();
+        cr.registerContentObserver(Settings.Secure.getUriFor(
+                Settings.Secure.USE_LOCATION_FOR_SERVICES), false, observer);
+        cr.registerContentObserver(Settings.System.getUriFor(
+                Settings.System.SHOW_WEB_SUGGESTIONS), false, observer);
+        cr.registerContentObserver(Partner.CONTENT_URI, true, observer);
+
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                reloadInBackground();
+            }
+        }, packageFilter);
+
+        mState = load();
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    private synchronized void reloadInBackground() {
+        if (mReloadPending) {
+            return;
+        }
+        mReloadPending = true;
+        mHandler.post(new Runnable() {
+            public void run() {
+                synchronized (SettingsMonitor.this) {
+                    mReloadPending = false;
+                }
+                State state = load();
+                mState = state;
+                Listener[] listeners;
+                synchronized (mListeners) {
+                    listeners = mListeners.toArray(new Listener[mListeners.size()]);
+                }
+                for (Listener listener : listeners) {
+                    listener.onSettingsChanged(state);
+                }
+            }
+        });
+    }
+
+    private State load() {
+        ContentResolver cr = mContext.getContentResolver();
+        return new State(
+                hasPackage(GOOGLE_SETTINGS_PACKAGE),
+                Settings.Secure.getInt(cr, Settings.Secure.USE_LOCATION_FOR_SERVICES, 2),
+                Partner.getString(cr, Partner.CLIENT_ID),
+                Settings.System.getInt(cr, Settings.System.SHOW_WEB_SUGGESTIONS, 1) == 1);
+    }
+
+    private boolean hasPackage(String packageName) {
+        try {
+            return mContext.getPackageManager().getPackageInfo(packageName, 0) != null;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+}
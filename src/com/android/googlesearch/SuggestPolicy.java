@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.content.res.Resources;
+
+/**
+ * How suggest requests are made on one class of network, e.g. how long they may take.
+ * The values for each class are in the suggest_policy_* arrays in config.xml, indexed by
+ * the network classes of {@link ConnectivityMonitor}.
+ */
+class SuggestPolicy {
+
+    /**
+     * The longest a request may be held back while the user is typing quickly, or 0 for
+     * no debouncing.
+     */
+    public final int mDebounceMaxMs;
+
+    /**
+     * The connect and read timeout to use until the latency of the network is known.
+     */
+    public final int mTimeoutDefaultMs;
+
+    /**
+     * The upper bound on the connect and read timeouts.
+     */
+    public final int mTimeoutMaxMs;
+
+    /**
+     * Whether to ask for compressed responses.
+     */
+    public final boolean mAcceptCompression;
+
+    /**
+     * Whether speculative requests may be made, if prefetching is turned on at all.
+     */
+    public final boolean mPrefetch;
+
+    private SuggestPolicy(Resources res, int networkClass) {
+        mDebounceMaxMs = res.getIntArray(R.array.suggest_policy_debounce_max_ms)[networkClass];
+        mTimeoutDefaultMs =
+                res.getIntArray(R.array.suggest_policy_timeout_default_ms)[networkClass];
+        mTimeoutMaxMs = res.getIntArray(R.array.suggest_policy_timeout_max_ms)[networkClass];
+        mAcceptCompression =
+                res.getIntArray(R.array.suggest_policy_accept_compression)[networkClass] != 0;
+        mPrefetch = res.getIntArray(R.array.suggest_policy_prefetch)[networkClass] != 0;
+    }
+
+    /**
+     * Loads the policy table, indexed by network class.
+     */
+    public static SuggestPolicy[] loadPolicies(Resources res) {
+        return new SuggestPolicy[] {
+            new SuggestPolicy(res, ConnectivityMonitor.CLASS_2G),
+            new SuggestPolicy(res, ConnectivityMonitor.CLASS_3G),
+            new SuggestPolicy(res, ConnectivityMonitor.CLASS_WIFI),
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "SuggestPolicy{debounce=" + mDebounceMaxMs
+                + ", timeout=" + mTimeoutDefaultMs + "/" + mTimeoutMaxMs
+                + ", compression=" + mAcceptCompression
+                + ", prefetch=" + mPrefetch + "}";
+    }
+}
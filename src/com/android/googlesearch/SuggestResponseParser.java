@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Parses a suggest server response straight from the response stream.
+ *
+ * Goto http://www.google.com/complete/search?json=true&q=foo to see what the data format
+ * looks like. It's basically a json array containing 4 other arrays. We only care about the
+ * middle 2 which contain the suggestions and their popularity, so the first element is
+ * skipped without being materialized, and nothing after the popularity array is read at all.
+ *
+ * Malformed or truncated responses cause a {@link JSONException}, just like handing them to
+ * {@link org.json.JSONArray} would.
+ */
+class SuggestResponseParser {
+
+    private static final int BUFFER_SIZE = 512;
+    private static final int INITIAL_ARRAY_SIZE = 10;
+
+    private static final String[] EMPTY = new String[0];
+
+    private final Reader mReader;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+
+    private final StringBuilder mString = new StringBuilder();
+
+    private SuggestResponseParser(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Parses a suggest response.
+     *
+     * @param in The response body. It is not closed.
+     * @param charset The character set of the response body.
+     */
+    public static Suggestions parse(InputStream in, String charset)
+            throws IOException, JSONException {
+        return new SuggestResponseParser(new InputStreamReader(in, charset)).parse();
+    }
+
+    private Suggestions parse() throws IOException, JSONException {
+        expect('[');
+        skipValue();                // the query
+        expect(',');
+        String[] suggestions = readStringArray();
+        expect(',');
+        String[] popularity = readStringArray();
+        return new Suggestions(suggestions, popularity);
+    }
+
+    /**
+     * Reads a json array of scalars, as strings.
+     */
+    private String[] readStringArray() throws IOException, JSONException {
+        expect('[');
+        if (peekNonWhitespace() == ']') {
+            mPos++;
+            return EMPTY;
+        }
+        String[] strings = new String[INITIAL_ARRAY_SIZE];
+        int count = 0;
+        while (true) {
+            if (count == strings.length) {
+                String[] grown = new String[count * 2];
+                System.arraycopy(strings, 0, grown, 0, count);
+                strings = grown;
+            }
+            strings[count++] = readScalar();
+            char c = nextNonWhitespace();
+            if (c == ']') {
+                break;
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or ']' but was '" + c + "'");
+            }
+        }
+        if (count == strings.length) {
+            return strings;
+        }
+        String[] trimmed = new String[count];
+        System.arraycopy(strings, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * Reads a string, number or literal, returning it as a string the way
+     * {@link org.json.JSONArray#getString(int)} would.
+     */
+    private String readScalar() throws IOException, JSONException {
+        char c = nextNonWhitespace();
+        if (c == '"') {
+            return readString();
+        } else if (c == '[' || c == '{') {
+            throw syntaxError("Expected a string but was '" + c + "'");
+        }
+        mString.setLength(0);
+        mString.append(c);
+        while (fill()) {
+            c = mBuffer[mPos];
+            if (c == ',' || c == ']' || c == '}' || Character.isWhitespace(c)) {
+                break;
+            }
+            mString.append(c);
+            mPos++;
+        }
+        return mString.toString();
+    }
+
+    /**
+     * Reads the rest of a quoted string, the opening quote having been consumed.
+     */
+    private String readString() throws IOException, JSONException {
+        mString.setLength(0);
+        while (true) {
+            int start = mPos;
+            while (mPos < mLimit) {
+                char c = mBuffer[mPos];
+                if (c == '"') {
+                    mString.append(mBuffer, start, mPos - start);
+                    mPos++;
+                    return mString.toString();
+                } else if (c == '\\') {
+                    mString.append(mBuffer, start, mPos - start);
+                    mPos++;
+                    mString.append(readEscape());
+                    start = mPos;
+                } else {
+                    mPos++;
+                }
+            }
+            mString.append(mBuffer, start, mPos - start);
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException, JSONException {
+        char c = next();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit == -1) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                // '"', '\\', '/' and anything else stand for themselves.
+                return c;
+        }
+    }
+
+    /**
+     * Skips over any json value without building it.
+     */
+    private void skipValue() throws IOException, JSONException {
+        char c = nextNonWhitespace();
+        if (c == '"') {
+            skipString();
+        } else if (c == '[' || c == '{') {
+            int depth = 1;
+            while (depth > 0) {
+                c = next();
+                if (c == '"') {
+                    skipString();
+                } else if (c == '[' || c == '{') {
+                    depth++;
+                } else if (c == ']' || c == '}') {
+                    depth--;
+                }
+            }
+        } else {
+            mPos--;
+            readScalar();
+        }
+    }
+
+    private void skipString() throws IOException, JSONException {
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                next();
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException, JSONException {
+        char c = nextNonWhitespace();
+        if (c != expected) {
+            throw syntaxError("Expected '" + expected + "' but was '" + c + "'");
+        }
+    }
+
+    private char peekNonWhitespace() throws IOException, JSONException {
+        char c = nextNonWhitespace();
+        mPos--;
+        return c;
+    }
+
+    private char nextNonWhitespace() throws IOException, JSONException {
+        char c;
+        do {
+            c = next();
+        } while (Character.isWhitespace(c));
+        return c;
+    }
+
+    private char next() throws IOException, JSONException {
+        if (!fill()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return mBuffer[mPos++];
+    }
+
+    /**
+     * Makes sure there is at least one unread character in the buffer.
+     *
+     * @return false at the end of the input.
+     */
+    private boolean fill() throws IOException {
+        if (mPos < mLimit) {
+            return true;
+        }
+        // Keep the last character around so that it can be pushed back.
+        if (mLimit > 0) {
+            mBuffer[0] = mBuffer[mLimit - 1];
+            mPos = mLimit = 1;
+        }
+        int read = mReader.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (read <= 0) {
+            return false;
+        }
+        mLimit += read;
+        return true;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " in suggest response");
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, in-memory LRU cache of suggest server responses. The size of the cache is
+ * measured in (estimated) bytes rather than entries, and each entry expires a fixed time
+ * after it was added.
+ *
+ * Keys are built with {@link #makeKey(String, String)} so that the same query typed under
+ * a different locale (and hence suggest uri) does not share an entry.
+ *
+ * Expired entries that came with an ETag are kept around (until evicted) so that they can
+ * be revalidated with a conditional request instead of being downloaded again.
+ *
+ * Queries whose requests failed are remembered separately for a short while, so that they
+ * are not retried on every refresh while the server is having trouble.
+ */
+class SuggestionCache {
+
+    // Rough per-entry overhead: the map entry, the Entry object and the key string header.
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    // How many failed queries are remembered.
+    private static final int MAX_FAILURES = 32;
+
+    private final int mMaxBytes;
+    private final long mTtlMillis;
+
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private int mSizeBytes;
+
+    // When each recently failed query may be retried, oldest first.
+    private final LinkedHashMap<String, Long> mFailures =
+            new LinkedHashMap<String, Long>(MAX_FAILURES, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_FAILURES;
+                }
+            };
+
+    // Changes whenever the cache is cleared.
+    private int mGeneration;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private int mExpiredCount;
+    private int mPrefixHitCount;
+    private int mRevalidatedCount;
+    private int mFailureHitCount;
+
+    /**
+     * @param maxBytes The maximum estimated size of all cached entries.
+     * @param ttlMillis How long an entry stays valid after it was added.
+     */
+    public SuggestionCache(int maxBytes, long ttlMillis) {
+        mMaxBytes = maxBytes;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Builds a cache key from the suggest uri in effect and the user's query.
+     */
+    public static String makeKey(String suggestUri, String query) {
+        return suggestUri + normalizeQuery(query);
+    }
+
+    /**
+     * Normalizes a query so that trivially different queries (case, surrounding and repeated
+     * whitespace) map to the same cache entry.
+     */
+    public static String normalizeQuery(String query) {
+        StringBuilder normalized = new StringBuilder(query.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    normalized.append(' ');
+                    pendingSpace = false;
+                }
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Returns the cached suggestions for the given key, or null if there are none or they
+     * have expired.
+     */
+    public synchronized Suggestions get(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mExpiresAt <= SystemClock.elapsedRealtime()) {
+            if (entry.mETag == null) {
+                removeEntry(key, entry);
+            }
+            mExpiredCount++;
+            entry = null;
+        }
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry.mSuggestions;
+    }
+
+    /**
+     * Checks whether there are unexpired suggestions for a key, without counting a hit
+     * or miss.
+     */
+    public synchronized boolean containsFresh(String key) {
+        Entry entry = mEntries.get(key);
+        return entry != null && entry.mExpiresAt > SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Finds the cached suggestions for the longest strict prefix of a query, e.g. the
+     * results for "andr" when the user has typed "andro". This is counted separately
+     * from the hits and misses of {@link #get(String)}.
+     *
+     * @return The suggestions for the prefix, or null if no prefix of the query is cached.
+     */
+    public synchronized Suggestions getLongestPrefix(String suggestUri, String query) {
+        String normalized = normalizeQuery(query);
+        long now = SystemClock.elapsedRealtime();
+        for (int length = normalized.length() - 1; length > 0; length--) {
+            Entry entry = mEntries.get(suggestUri + normalized.substring(0, length));
+            if (entry != null && entry.mExpiresAt > now) {
+                mPrefixHitCount++;
+                return entry.mSuggestions;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the suggestions for a query or, failing that, for the longest prefix of it,
+     * whether or not they have expired. This is for when nothing better can be had, e.g.
+     * because there is no network. It does not count as a hit or miss.
+     */
+    public synchronized Suggestions getStale(String suggestUri, String query) {
+        String normalized = normalizeQuery(query);
+        for (int length = normalized.length(); length > 0; length--) {
+            Entry entry = mEntries.get(suggestUri + normalized.substring(0, length));
+            if (entry != null) {
+                return entry.mSuggestions;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Works out how long an entry is valid for in this cache.
+     *
+     * @param ttlMillis As for {@link #put(String, Suggestions, long, String, int)}.
+     */
+    public long getTtlMillis(long ttlMillis) {
+        return ttlMillis < 0 ? mTtlMillis : Math.min(ttlMillis, mTtlMillis);
+    }
+
+    /**
+     * Adds suggestions to the cache with the default time to live.
+     */
+    public synchronized void put(String key, Suggestions suggestions) {
+        put(key, suggestions, -1, null, mGeneration);
+    }
+
+    /**
+     * Gets the generation of the cache, which changes whenever it is cleared. Get it before
+     * fetching something to put in the cache, and pass it to
+     * {@link #put(String, Suggestions, long, String, int)}.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Adds suggestions to the cache, evicting the least recently used entries as needed.
+     * Entries larger than the whole cache are not stored.
+     *
+     * @param ttlMillis How long the entry is valid for, e.g. from a Cache-Control max-age;
+     *        never more than the default time to live. Pass -1 to use the default.
+     * @param etag The entity tag of the response, or null.
+     * @param generation From {@link #getGeneration()}. If the cache has been cleared since,
+     *        the suggestions are not added, since they may be what was cleared.
+     */
+    public synchronized void put(String key, Suggestions suggestions, long ttlMillis,
+            String etag, int generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        int size = ENTRY_OVERHEAD_BYTES + 2 * key.length() + suggestions.sizeInBytes();
+        if (etag != null) {
+            size += 2 * etag.length();
+        }
+        Entry old = mEntries.remove(key);
+        if (old != null) {
+            mSizeBytes -= old.mSizeBytes;
+        }
+        ttlMillis = getTtlMillis(ttlMillis);
+        if (size > mMaxBytes || (ttlMillis == 0 && etag == null)) {
+            return;
+        }
+        mEntries.put(key, new Entry(suggestions, size,
+                SystemClock.elapsedRealtime() + ttlMillis, etag));
+        mSizeBytes += size;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Records that a request for a key failed, so that it is not retried for a while.
+     */
+    public synchronized void putFailure(String key, long ttlMillis) {
+        mFailures.remove(key);
+        mFailures.put(key, SystemClock.elapsedRealtime() + ttlMillis);
+    }
+
+    /**
+     * Checks whether a request for a key failed recently.
+     */
+    public synchronized boolean isFailure(String key) {
+        Long retryAt = mFailures.get(key);
+        if (retryAt == null) {
+            return false;
+        }
+        if (retryAt <= SystemClock.elapsedRealtime()) {
+            mFailures.remove(key);
+            return false;
+        }
+        mFailureHitCount++;
+        return true;
+    }
+
+    /**
+     * Gets the entity tag of a cached entry, whether or not it has expired, so that it can
+     * be sent in an If-None-Match header.
+     */
+    public synchronized String getETag(String key) {
+        Entry entry = mEntries.get(key);
+        return entry == null ? null : entry.mETag;
+    }
+
+    /**
+     * Renews a cached entry after the server said it has not been modified.
+     *
+     * @param ttlMillis As for {@link #put(String, Suggestions, long, String, int)}.
+     * @return The cached suggestions, or null if they have been evicted in the meantime.
+     */
+    public synchronized Suggestions revalidate(String key, long ttlMillis) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        ttlMillis = getTtlMillis(ttlMillis);
+        mEntries.put(key, new Entry(entry.mSuggestions, entry.mSizeBytes,
+                SystemClock.elapsedRealtime() + ttlMillis, entry.mETag));
+        mRevalidatedCount++;
+        return entry.mSuggestions;
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+        mFailures.clear();
+        mSizeBytes = 0;
+    }
+
+    private void trimToSize(int maxBytes) {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSizeBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            mSizeBytes -= entry.mSizeBytes;
+            mEvictionCount++;
+        }
+    }
+
+    private void removeEntry(String key, Entry entry) {
+        mEntries.remove(key);
+        mSizeBytes -= entry.mSizeBytes;
+    }
+
+    public synchronized int getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized int getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    public synchronized int getPrefixHitCount() {
+        return mPrefixHitCount;
+    }
+
+    public synchronized int getRevalidatedCount() {
+        return mRevalidatedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SuggestionCache{entries=" + mEntries.size()
+                + ", bytes=" + mSizeBytes + "/" + mMaxBytes
+                + ", hits=" + mHitCount
+                + ", misses=" + mMissCount
+                + ", evictions=" + mEvictionCount
+                + ", expired=" + mExpiredCount
+                + ", prefixHits=" + mPrefixHitCount
+                + ", revalidated=" + mRevalidatedCount
+                + ", failures=" + mFailures.size()
+                + ", failureHits=" + mFailureHitCount + "}";
+    }
+
+    private static class Entry {
+        final Suggestions mSuggestions;
+        final int mSizeBytes;
+        final long mExpiresAt;
+        final String mETag;
+
+        Entry(Suggestions suggestions, int sizeBytes, long expiresAt, String etag) {
+            mSuggestions = suggestions;
+            mSizeBytes = sizeBytes;
+            mExpiresAt = expiresAt;
+            mETag = etag;
+        }
+    }
+}
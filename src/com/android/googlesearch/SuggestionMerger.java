@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Asks several {@link SuggestionSource}s for suggestions at once, and merges whatever they
+ * have answered by a deadline, so that a slow source holds up no more than the deadline.
+ * The answers of sources that are still running at the deadline are merged in as they
+ * arrive, see {@link Result}.
+ *
+ * Sources are ranked in the order they are given in: the suggestions of each source come
+ * after those of the sources before it, leaving out any that an earlier source already
+ * has. A source may stand in for another until that one answers, after which the stand-in's
+ * answer is dropped.
+ */
+class SuggestionMerger {
+
+    private final Executor mExecutor;
+    private final SuggestionSource[] mSources;
+    private final int[] mStandsInFor;
+
+    // How often each source missed the deadline.
+    private final int[] mLateCounts;
+
+    /**
+     * @param executor Runs the sources that are not local. It should not queue.
+     * @param sources The sources, best first.
+     * @param standsInFor For each source, the index of the source it stands in for, or -1.
+     */
+    public SuggestionMerger(Executor executor, SuggestionSource[] sources, int[] standsInFor) {
+        mExecutor = executor;
+        mSources = sources;
+        mStandsInFor = standsInFor;
+        mLateCounts = new int[sources.length];
+    }
+
+    /**
+     * Asks all the sources for suggestions for a query, and waits for them until the
+     * deadline. Local sources are asked on the calling thread.
+     *
+     * @param deadline In the {@link SystemClock#uptimeMillis()} time base.
+     */
+    public Result query(final Object session, final String query, long deadline) {
+        final Result result = new Result(mStandsInFor);
+        for (int i = 0; i < mSources.length; i++) {
+            final SuggestionSource source = mSources[i];
+            if (source.isLocal()) {
+                result.set(i, source.getSuggestions(session, query));
+                continue;
+            }
+            final int index = i;
+            try {
+                mExecutor.execute(new Runnable() {
+                    public void run() {
+                        Suggestions suggestions = null;
+                        try {
+                            suggestions = source.getSuggestions(session, query);
+                        } finally {
+                            result.set(index, suggestions);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                SearchStats.count(SearchStats.REJECTED);
+                result.set(i, null);
+            }
+        }
+        if (!result.await(deadline)) {
+            synchronized (this) {
+                for (int i = 0; i < mSources.length; i++) {
+                    if (!result.isDone(i)) {
+                        mLateCounts[i]++;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder str = new StringBuilder("SuggestionMerger{late:");
+        for (int i = 0; i < mSources.length; i++) {
+            str.append(' ').append(mSources[i].getName()).append('=').append(mLateCounts[i]);
+        }
+        return str.append('}').toString();
+    }
+
+    /**
+     * The answers of the sources to one query, some of which may still be on their way.
+     */
+    public static class Result {
+        private final int[] mStandsInFor;
+        private final Suggestions[] mAnswers;
+        private final boolean[] mDone;
+        private int mPending;
+        private Runnable mOnComplete;
+
+        Result(int[] standsInFor) {
+            mStandsInFor = standsInFor;
+            mAnswers = new Suggestions[standsInFor.length];
+            mDone = new boolean[standsInFor.length];
+            mPending = standsInFor.length;
+        }
+
+        void set(int source, Suggestions suggestions) {
+            Runnable onComplete = null;
+            synchronized (this) {
+                int standsInFor = mStandsInFor[source];
+                if (standsInFor < 0 || mAnswers[standsInFor] == null) {
+                    mAnswers[source] = suggestions;
+                }
+                if (suggestions != null) {
+                    // The real answer is here; drop whatever stood in for it.
+                    for (int i = 0; i < mStandsInFor.length; i++) {
+                        if (mStandsInFor[i] == source) {
+                            mAnswers[i] = null;
+                        }
+                    }
+                }
+                mDone[source] = true;
+                mPending--;
+                notifyAll();
+                if (mPending == 0) {
+                    onComplete = mOnComplete;
+                    mOnComplete = null;
+                }
+            }
+            if (onComplete != null) {
+                onComplete.run();
+            }
+        }
+
+        /**
+         * Waits until all the sources have answered, or the deadline.
+         *
+         * @return true if all the sources have answered.
+         */
+        public synchronized boolean await(long deadline) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            while (mPending > 0 && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                remaining = deadline - SystemClock.uptimeMillis();
+            }
+            return mPending == 0;
+        }
+
+        public synchronized boolean isComplete() {
+            return mPending == 0;
+        }
+
+        public synchronized boolean isDone(int source) {
+            return mDone[source];
+        }
+
+        /**
+         * Gets the answer of one source.
+         *
+         * @return The suggestions, or null if the source failed, has not answered yet, or
+         *         stood in for a source that has since answered.
+         */
+        public synchronized Suggestions get(int source) {
+            return mAnswers[source];
+        }
+
+        /**
+         * Merges the answers that have arrived so far.
+         */
+        public synchronized Suggestions getSuggestions() {
+            Suggestions merged = Suggestions.EMPTY;
+            for (Suggestions answer : mAnswers) {
+                if (answer != null) {
+                    merged = Suggestions.merge(merged, answer);
+                }
+            }
+            return merged;
+        }
+
+        /**
+         * Sets something to run, on the thread of the last source to answer, once all the
+         * sources have answered. If they already have, it is run right away.
+         */
+        public void setOnComplete(Runnable onComplete) {
+            synchronized (this) {
+                if (mPending > 0) {
+                    mOnComplete = onComplete;
+                    return;
+                }
+            }
+            onComplete.run();
+        }
+    }
+}
@@ -18,81 +18,395 @@ package com.android.googlesearch;
 
 import com.google.android.net.GoogleHttpClient;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
 import org.json.JSONException;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
 import android.content.ContentValues;
-import android.content.Context;
-import android.database.AbstractCursor;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
 import android.database.Cursor;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.TimingLogger;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.util.Locale;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
- * Use network-based Google Suggests to provide search suggestions.
- *
- * Future:  Merge live suggestions with saved recent queries
+ * Use network-based Google Suggests to provide search suggestions, led by the matching
+ * queries the user has searched for before on this device.
  */
 public class SuggestionProvider extends ContentProvider {
 
     private static final String LOG_TAG = "GoogleSearch";
 
     private static final String USER_AGENT = "Android/1.0";
-    private String mSuggestUri;
+    private SearchUrlBuilder mUrlBuilder;
+
+    // How long to wait for a pooled connection to the suggest server.
     private static final int HTTP_TIMEOUT_MS = 1000;
 
-    // TODO: this should be defined somewhere
-    private static final String HTTP_TIMEOUT = "http.connection-manager.timeout";
-
-    private static final String SUGGESTION_ICON =
-            "android.resource://com.android.googlesearch/" + R.drawable.magnifying_glass;
-
-    // Indexes into COLUMNS
-    private static final int COL_ID = 0;
-    private static final int COL_TEXT_1 = 1;
-    private static final int COL_TEXT_2 = 2;
-    private static final int COL_ICON_1 = 3;
-    private static final int COL_ICON_2 = 4;
-    private static final int COL_QUERY = 5;
-
-    /* The suggestion columns used */
-    private static final String[] COLUMNS = new String[] {
-        "_id",
-        SearchManager.SUGGEST_COLUMN_TEXT_1,
-        SearchManager.SUGGEST_COLUMN_TEXT_2,
-        SearchManager.SUGGEST_COLUMN_ICON_1,
-        SearchManager.SUGGEST_COLUMN_ICON_2,
-        SearchManager.SUGGEST_COLUMN_QUERY
-    };
+    // How long to wait for an identical request that another caller already started.
+    private static final int JOIN_TIMEOUT_MS = 5 * HTTP_TIMEOUT_MS;
+
+    // How often a request is let through on a network that has been too slow, to find out
+    // whether it has got better.
+    private static final long SLOW_NETWORK_RETRY_MS = 30 * 1000;
+
+    private static final String STORE_FILE_NAME = "suggestions.dat";
+
+    // How many suggest responses may wait to be written to the store.
+    private static final int STORE_QUEUE_SIZE = 16;
+
+    // The session that prefetches are made under, so that they do not supersede, and are
+    // not superseded by, the requests of any real caller.
+    private static final Object PREFETCH_SESSION = "prefetch";
+
+    /**
+     * Column that is 1 for suggestions served from data held on the device because the
+     * suggest server could not be reached, and 0 for live ones.
+     */
+    public static final String COLUMN_OFFLINE = SuggestionsCursor.COLUMN_OFFLINE;
+
+    /**
+     * Last path segment of the batch uri,
+     * content://com.android.googlesearch.SuggestionProvider/batch. A query on it takes any
+     * number of query terms (up to {@link #MAX_BATCH_TERMS}) as its selection args, fetches
+     * the suggestions for all of them at once, and returns them in one cursor, grouped by
+     * term, with a {@link #COLUMN_TERM} column saying which term each row is for.
+     */
+    public static final String BATCH_PATH = "batch";
+
+    /**
+     * Column of batch cursors holding the query term a row is a suggestion for.
+     */
+    public static final String COLUMN_TERM = "term";
+
+    /**
+     * Optional query parameter of a suggest uri, naming which of the calling process's typing
+     * sessions the query is part of. This is for callers that stand in for several users at
+     * once, e.g. a load test driver. Without it, each calling process is one session.
+     */
+    public static final String SESSION_PARAMETER = "session";
+
+    /**
+     * Path of the stats uri, content://com.android.googlesearch.SuggestionProvider/stats. A
+     * query on it returns what {@link #dump} prints, one line per row in a
+     * {@link #COLUMN_LINE} column, but only while the debug property is set:
+     *   adb shell setprop debug.googlesearch.stats 1
+     * Otherwise it returns null, like a query with web suggestions turned off.
+     */
+    public static final String STATS_PATH = "stats";
+
+    /**
+     * Column of stats cursors holding a line of the dump.
+     */
+    public static final String COLUMN_LINE = "line";
+
+    private static final String STATS_PROPERTY = "debug.googlesearch.stats";
+
+    /**
+     * Path of the history uri, content://com.android.googlesearch.SuggestionProvider/history.
+     * Deleting it forgets the queries searched for and every suggestion kept on the device.
+     * Only this app may do so.
+     */
+    public static final String HISTORY_PATH = "history";
+
+    /**
+     * The permission needed to clear the history, and to get past queries among the
+     * suggestions. Other callers, e.g. the search boxes of other apps, only get the
+     * suggestions of the server. It is a signature permission.
+     */
+    public static final String HISTORY_PERMISSION =
+            "com.android.googlesearch.permission.SEARCH_HISTORY";
+
+    public static final int MAX_BATCH_TERMS = 8;
+
+    /* The columns of batch cursors: those of SuggestionsCursor, plus the term */
+    private static final String[] BATCH_COLUMNS =
+            new String[SuggestionsCursor.COLUMNS.length + 1];
+    static {
+        System.arraycopy(SuggestionsCursor.COLUMNS, 0, BATCH_COLUMNS, 0,
+                SuggestionsCursor.COLUMNS.length);
+        BATCH_COLUMNS[SuggestionsCursor.COLUMNS.length] = COLUMN_TERM;
+    }
 
     private HttpClient mHttpClient;
 
+    // Recent suggest latencies on each kind of network, from which the connect and read
+    // timeouts are worked out.
+    private LatencyTracker mLatencies;
+    private int mTimeoutMinMs;
+
+    // The state of the network, and how to make requests on each class of network.
+    private ConnectivityMonitor mConnectivity;
+    private SuggestPolicy[] mPolicies;
+
+    private SettingsMonitor mSettings;
+
+    // Stops requests while the suggest server is failing.
+    private CircuitBreaker mBreaker;
+    private long mNegativeTtlMs;
+
+    // Runs the duplicate requests sent when a request is slow, or null if that is off.
+    private ExecutorService mHedgeExecutor;
+
+    // Whether to use (conditional, cacheable) GETs rather than empty POSTs.
+    private boolean mUseGet;
+
+    // Recent suggest responses, so that retyping a prefix does not go to the network.
+    private SuggestionCache mCache;
+
+    // Suggest responses kept on disk, so that they survive the process being killed.
+    // The store is only written from mStoreExecutor, to keep disk writes off binder threads,
+    // except when the history is cleared.
+    private SuggestionStore mStore;
+    private ThreadPoolExecutor mStoreExecutor;
+
+    // Asks the history, the suggest server and the cache for suggestions at once, and
+    // merges what they have by the deadline.
+    private static final int SOURCE_HISTORY = 0;
+    private static final int SOURCE_REMOTE = 1;
+    private static final int SOURCE_PREFIX = 2;
+    private SuggestionMerger mMerger;
+    private int mMergeDeadlineMs;
+
+    // Coalesces identical requests and aborts superseded ones.
+    private InFlightRequests mRequests;
+
+    // Bounds the network fetches running at once, so that binder threads do not pile up
+    // behind the network when many clients query at once.
+    private FetchLimiter mLimiter;
+
+    // Fetches the terms of batch queries in parallel.
+    private ExecutorService mBatchExecutor;
+    private int mBatchDeadlineMs;
+
+    // Fetches the suggestions for the likely next keystrokes, or null if that is off.
+    private Executor mPrefetchExecutor;
+    private PrefetchBudget mPrefetchBudget;
+    private int mPrefetchCount;
+
+    // Past queries, shown above the live suggestions.
+    private QueryHistory mHistory;
+    private int mMaxHistorySuggestions;
+
+    // Whether the fields above have been set up, see initialize().
+    private volatile boolean mInitialized;
+    private final Object mInitLock = new Object();
+
+    // The id of the background thread while it sets the provider up, or 0. Guarded by
+    // mBoostLock, so that the thread's priority is not raised after it has been restored.
+    private int mInitTid;
+    private final Object mBoostLock = new Object();
+
+    /**
+     * This runs while the hosting process starts, and most starts never serve a suggestion,
+     * so it only arranges for the provider to be set up on the {@link BackgroundThread}
+     * once the process has gone idle. A query that comes in before then sets it up itself.
+     */
     @Override
     public boolean onCreate() {
-        mHttpClient = new GoogleHttpClient(getContext(), USER_AGENT, false /* not gzip capable */);
+        long start = SearchStats.start();
+        final Runnable initializer = new Runnable() {
+            public void run() {
+                initializeInBackground();
+            }
+        };
+        if (Looper.myLooper() != null) {
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                public boolean queueIdle() {
+                    BackgroundThread.getHandler().post(initializer);
+                    return false;
+                }
+            });
+        } else {
+            BackgroundThread.getHandler().post(initializer);
+        }
+        SearchStats.time(SearchStats.PROVIDER_CREATE, start);
+        return true;
+    }
+
+    /**
+     * Sets up the http client, caches, executors and everything else the provider needs,
+     * if that has not been done yet. This also reads the on-disk store index and query
+     * history, so that the first query does not have to.
+     */
+    private void initialize() {
+        if (mInitialized) {
+            return;
+        }
+        synchronized (mInitLock) {
+            if (mInitialized) {
+                return;
+            }
+            long start = SearchStats.start();
+            // To see how long each step takes: adb shell setprop log.tag.GoogleSearch VERBOSE
+            TimingLogger timings = new TimingLogger(LOG_TAG, "SuggestionProvider.initialize");
+            initializeFields(timings);
+            mStore.prewarm();
+            timings.addSplit("store");
+            mHistory.prewarm();
+            timings.addSplit("history");
+            mInitialized = true;
+            SearchStats.time(SearchStats.PROVIDER_INIT, start);
+            timings.dumpToLog();
+        }
+    }
+
+    /**
+     * Sets up the provider on the {@link BackgroundThread}, at its low priority unless a
+     * query comes in that has to wait for it, see {@link #initializeNow()}.
+     */
+    private void initializeInBackground() {
+        synchronized (mBoostLock) {
+            mInitTid = Process.myTid();
+        }
+        try {
+            initialize();
+        } finally {
+            synchronized (mBoostLock) {
+                mInitTid = 0;
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+        }
+    }
+
+    /**
+     * Sets up the provider for a call that needs it now. If the background thread is
+     * already at it, it is raised to the priority of this thread for the rest of it, since
+     * this thread waits for it.
+     */
+    private void initializeNow() {
+        synchronized (mBoostLock) {
+            if (mInitTid != 0) {
+                int priority = Process.getThreadPriority(Process.myTid());
+                if (priority < Process.getThreadPriority(mInitTid)) {
+                    Process.setThreadPriority(mInitTid, priority);
+                }
+            }
+        }
+        initialize();
+    }
+
+    private void initializeFields(TimingLogger timings) {
+        Resources res = getContext().getResources();
+        // Not gzip capable: that would ask for compression on every request, whereas the
+        // policy for the network class decides it per request, see newSuggestRequest().
+        mHttpClient = new GoogleHttpClient(getContext(), USER_AGENT, false);
         HttpParams params = mHttpClient.getParams();
-        params.setLongParameter(HTTP_TIMEOUT, HTTP_TIMEOUT_MS);
+        ConnManagerParams.setTimeout(params, HTTP_TIMEOUT_MS);
+        // Keep a few connections to the suggest server alive, so that typing does not
+        // serialize on, or reconnect for, a single connection. The pool reads this when the
+        // route is first used.
+        int maxConnections = res.getInteger(R.integer.suggest_max_connections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        timings.addSplit("http client");
+        mUseGet = res.getBoolean(R.bool.suggest_use_get);
+        mLatencies = new LatencyTracker();
+        mTimeoutMinMs = res.getInteger(R.integer.suggest_timeout_min_ms);
+        mConnectivity = ConnectivityMonitor.getConnectivityMonitor(getContext());
+        mPolicies = SuggestPolicy.loadPolicies(res);
+        mSettings = SettingsMonitor.getSettingsMonitor(getContext());
+        mBreaker = new CircuitBreaker(res.getInteger(R.integer.suggest_breaker_failure_percent),
+                res.getInteger(R.integer.suggest_breaker_min_requests),
+                res.getInteger(R.integer.suggest_breaker_min_backoff_ms),
+                res.getInteger(R.integer.suggest_breaker_max_backoff_ms));
+        mNegativeTtlMs = res.getInteger(R.integer.suggest_negative_cache_ttl_seconds) * 1000L;
+        timings.addSplit("monitors");
+        if (res.getBoolean(R.bool.suggest_hedge_requests)) {
+            // A hedged fetch runs both of its requests here.
+            mHedgeExecutor = new ThreadPoolExecutor(0, 2 * maxConnections, 30, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>());
+        }
 
-        // NOTE:  Do not look up the resource here;  Localization changes may not have completed
-        // yet (e.g. we may still be reading the SIM card).
-        mSuggestUri = null;
-        return true;
+        mCache = new SuggestionCache(res.getInteger(R.integer.suggestion_cache_max_bytes),
+                res.getInteger(R.integer.suggestion_cache_ttl_seconds) * 1000L);
+        mStore = new SuggestionStore(new File(getContext().getCacheDir(), STORE_FILE_NAME),
+                res.getInteger(R.integer.suggestion_store_max_bytes),
+                res.getInteger(R.integer.suggestion_store_ttl_hours) * 60 * 60 * 1000L);
+        mStoreExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(STORE_QUEUE_SIZE),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+        // Fetches beyond the connection limit are turned away by mLimiter anyway.
+        mMerger = new SuggestionMerger(new ThreadPoolExecutor(0, 2 * maxConnections, 30,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>()),
+                new SuggestionSource[] {
+                    new HistorySource(), new RemoteSource(), new PrefixSource() },
+                new int[] { -1, -1, SOURCE_REMOTE });
+        mMergeDeadlineMs = res.getInteger(R.integer.suggest_merge_deadline_ms);
+        mRequests = new InFlightRequests(JOIN_TIMEOUT_MS);
+        mLimiter = new FetchLimiter(maxConnections,
+                res.getInteger(R.integer.suggest_max_fetches_per_caller));
+        mBatchExecutor = new ThreadPoolExecutor(0, MAX_BATCH_TERMS, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+        mBatchDeadlineMs = res.getInteger(R.integer.suggest_batch_deadline_ms);
+        if (res.getBoolean(R.bool.suggest_prefetch)) {
+            // Only the prefetch for the latest query is worth waiting for.
+            mPrefetchExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(1),
+                    new ThreadPoolExecutor.DiscardOldestPolicy());
+            mPrefetchBudget = new PrefetchBudget(
+                    res.getInteger(R.integer.suggest_prefetch_max_requests_per_minute),
+                    res.getInteger(R.integer.suggest_prefetch_max_bytes_per_minute));
+            mPrefetchCount = res.getInteger(R.integer.suggest_prefetch_count);
+        }
+        mHistory = QueryHistory.getQueryHistory(getContext());
+        mMaxHistorySuggestions = res.getInteger(R.integer.query_history_max_suggestions);
+
+        // NOTE:  Do not look up the suggest uri here;  Localization changes may not have
+        // completed yet (e.g. we may still be reading the SIM card). The url builder only
+        // works it out on first use, and again whenever the configuration changes.
+        mUrlBuilder = SearchUrlBuilder.getSearchUrlBuilder(getContext());
+        timings.addSplit("caches");
     }
 
     /**
@@ -111,170 +425,873 @@ public class SuggestionProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
+        if (!mInitialized) {
+            SearchStats.count(SearchStats.WAITED_FOR_INIT);
+            initializeNow();
+        }
+        // Check the whole path, here and for batches: a suggest uri may end with the query,
+        // which could be "stats" or "batch".
+        if (uri.getPathSegments().size() == 1 && STATS_PATH.equals(uri.getLastPathSegment())) {
+            return queryStats();
+        }
+        // The search dialog checks this setting too, but other clients may not.
+        if (!mSettings.getState().mShowWebSuggestions) {
+            return null;
+        }
+        if (uri.getPathSegments().size() == 1 && BATCH_PATH.equals(uri.getLastPathSegment())) {
+            long start = SearchStats.start();
+            try {
+                return queryBatch(selectionArgs);
+            } finally {
+                SearchStats.time(SearchStats.SUGGEST_BATCH, start);
+            }
+        }
         String query = selectionArgs[0];
         if (TextUtils.isEmpty(query)) {
             return null;
         }
-        if (!isNetworkConnected()) {
+        long start = SearchStats.start();
+        try {
+            return querySuggestions(uri, query);
+        } finally {
+            SearchStats.time(SearchStats.SUGGEST_QUERY, start);
+        }
+    }
+
+    private Cursor querySuggestions(Uri uri, String query) {
+        // The user is typing a query they may soon search for; get ready to launch it.
+        GoogleSearch.prewarm(getContext());
+
+        String suggestUri = mUrlBuilder.getSuggestUriPrefix();
+        String cacheKey = SuggestionCache.makeKey(suggestUri, query);
+        // Each calling process is treated as one typing session, unless it names its
+        // sessions; a new query from a session supersedes whatever it asked for before.
+        boolean historyAllowed = isHistoryAllowed();
+        Object session = new Session(Integer.valueOf(Binder.getCallingPid()),
+                uri.getQueryParameter(SESSION_PARAMETER), historyAllowed);
+        mRequests.onQuery(session, cacheKey);
+        Suggestions cached = mCache.get(cacheKey);
+        if (cached != null) {
+            SearchStats.count(SearchStats.CACHE_HIT);
+            return new SuggestionsCursor(getHistory(query, historyAllowed), cached);
+        }
+        Suggestions stored = getStored(cacheKey);
+        if (stored != null) {
+            SearchStats.count(SearchStats.STORE_HIT);
+            return new SuggestionsCursor(getHistory(query, historyAllowed), stored);
+        }
+        if (!mConnectivity.isConnected()) {
             Log.i(LOG_TAG, "Not connected to network.");
+            return getOfflineCursor(suggestUri, query, getHistory(query, historyAllowed));
+        }
+        if (mBreaker.isOpen() || mCache.isFailure(cacheKey)) {
+            // Don't wait for a server that is failing, or for a query that just failed.
+            SearchStats.count(SearchStats.SHORT_CIRCUITED);
+            return getOfflineCursor(suggestUri, query, getHistory(query, historyAllowed));
+        }
+        if (isNetworkTooSlow(mConnectivity.getState())) {
+            // The answer would likely come after the user has typed on, or given up.
+            SearchStats.count(SearchStats.SLOW_NETWORK);
+            return getOfflineCursor(suggestUri, query, getHistory(query, historyAllowed));
+        }
+
+        // Show whatever the sources have by the deadline, and refresh the cursor once the
+        // rest arrives. If there is nothing at all to show by then, wait for the server, but
+        // no longer than its request can take on this network.
+        long now = SystemClock.uptimeMillis();
+        SuggestionMerger.Result result = mMerger.query(session, query, now + mMergeDeadlineMs);
+        if (!result.isComplete() && result.getSuggestions().getCount() == 0) {
+            ConnectivityMonitor.State state = mConnectivity.getState();
+            SuggestPolicy policy = mPolicies[state.mNetworkClass];
+            // The connect timeout and the read timeout, after the request is let go.
+            long wait = policy.mDebounceMaxMs + 2L * getTimeoutMillis(state.mKey, policy);
+            result.await(now + Math.min(wait, JOIN_TIMEOUT_MS));
+        }
+        if (result.isComplete() && result.get(SOURCE_REMOTE) == null) {
+            return getOfflineCursor(suggestUri, query, result.get(SOURCE_HISTORY));
+        }
+        SuggestionsCursor cursor = new SuggestionsCursor(result, SOURCE_REMOTE);
+        if (!result.isComplete()) {
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+            final Uri notifyUri = uri;
+            final SuggestionMerger.Result pending = result;
+            result.setOnComplete(new Runnable() {
+                public void run() {
+                    if (pending.get(SOURCE_REMOTE) == null) {
+                        // The cursor marks its rows as offline when it is requeried.
+                        SearchStats.count(SearchStats.OFFLINE);
+                    }
+                    getContext().getContentResolver().notifyChange(notifyUri, null);
+                }
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * Gets an unexpired response from the on-disk store, and puts it back in the cache for
+     * as long as it has left, along with its ETag.
+     *
+     * @return The suggestions, or null if there is no unexpired response.
+     */
+    private Suggestions getStored(String cacheKey) {
+        int generation = mCache.getGeneration();
+        SuggestionStore.Entry entry = mStore.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        mCache.put(cacheKey, entry.mSuggestions, entry.mExpiresAt - System.currentTimeMillis(),
+                entry.mETag, generation);
+        return entry.mSuggestions;
+    }
+
+    /**
+     * Checks whether the caller may see the user's past queries, see
+     * {@link #HISTORY_PERMISSION}. The search dialog runs in the system process, which
+     * holds every permission; it is checked for first since that does not need a call to
+     * the activity manager.
+     */
+    private boolean isHistoryAllowed() {
+        return Binder.getCallingUid() == Process.SYSTEM_UID
+                || getContext().checkCallingPermission(HISTORY_PERMISSION)
+                        == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Gets the past queries matching a query, or none if the caller may not see them.
+     */
+    private Suggestions getHistory(String query, boolean allowed) {
+        return allowed ? mHistory.getSuggestions(query, mMaxHistorySuggestions)
+                : Suggestions.EMPTY;
+    }
+
+    /**
+     * The user's past queries.
+     */
+    private class HistorySource implements SuggestionSource {
+        public String getName() {
+            return "history";
+        }
+
+        public boolean isLocal() {
+            return true;
+        }
+
+        public Suggestions getSuggestions(Object session, String query) {
+            return getHistory(query, ((Session) session).mHistoryAllowed);
+        }
+    }
+
+    /**
+     * The suggest server.
+     */
+    private class RemoteSource implements SuggestionSource {
+        public String getName() {
+            return "remote";
+        }
+
+        public boolean isLocal() {
+            return false;
+        }
+
+        public Suggestions getSuggestions(Object session, String query) {
+            String cacheKey = SuggestionCache.makeKey(mUrlBuilder.getSuggestUriPrefix(), query);
+            return fetchSuggestions(session, ((Session) session).mCaller, query, cacheKey);
+        }
+    }
+
+    /**
+     * If the user has extended a query we have results for, those results filtered by the
+     * new query. These stand in for the server's results until they arrive.
+     */
+    private class PrefixSource implements SuggestionSource {
+        public String getName() {
+            return "prefix";
+        }
+
+        public boolean isLocal() {
+            return true;
+        }
+
+        public Suggestions getSuggestions(Object session, String query) {
+            Suggestions prefixSuggestions =
+                    mCache.getLongestPrefix(mUrlBuilder.getSuggestUriPrefix(), query);
+            return prefixSuggestions == null ? Suggestions.EMPTY
+                    : prefixSuggestions.filter(SuggestionCache.normalizeQuery(query));
+        }
+    }
+
+    /**
+     * Builds a cursor from what is held on the device, for when the suggest server cannot
+     * be reached: the matching past queries, followed by the response for the query or the
+     * longest prefix of it that we have, even if stale, filtered by the query.
+     *
+     * @return A cursor whose rows are all marked as offline, or null if there is nothing.
+     */
+    private Cursor getOfflineCursor(String suggestUri, String query, Suggestions history) {
+        Suggestions suggestions = getLocalSuggestions(suggestUri, query);
+        if (history.getCount() == 0 && suggestions.getCount() == 0) {
             return null;
         }
+        SearchStats.count(SearchStats.OFFLINE);
+        return new SuggestionsCursor(history, suggestions, true);
+    }
+
+    /**
+     * Gets the response held on the device for a query or the longest prefix of it, even if
+     * stale, filtered by the query.
+     */
+    private Suggestions getLocalSuggestions(String suggestUri, String query) {
+        Suggestions local = mCache.getStale(suggestUri, query);
+        if (local == null) {
+            local = mStore.getLongestPrefix(suggestUri, query);
+        }
+        return local == null
+                ? Suggestions.EMPTY : local.filter(SuggestionCache.normalizeQuery(query));
+    }
+
+    /**
+     * Gets the suggestions for several query terms at once. Terms that are not cached are
+     * fetched in parallel; those that have not been fetched by the batch deadline, or could
+     * not be, get what is held locally, marked as offline.
+     */
+    private Cursor queryBatch(String[] terms) {
+        int count = terms == null ? 0 : Math.min(terms.length, MAX_BATCH_TERMS);
+        String suggestUri = mUrlBuilder.getSuggestUriPrefix();
+        Integer caller = Integer.valueOf(Binder.getCallingPid());
+        boolean historyAllowed = isHistoryAllowed();
+        boolean connected = mConnectivity.isConnected() && !mBreaker.isOpen()
+                && !isNetworkTooSlow(mConnectivity.getState());
+        Suggestions[] results = new Suggestions[count];
+        ArrayList<Future<Suggestions>> fetches = new ArrayList<Future<Suggestions>>(count);
+        for (int i = 0; i < count; i++) {
+            fetches.add(null);
+            final String term = terms[i];
+            if (TextUtils.isEmpty(term)) {
+                continue;
+            }
+            final String cacheKey = SuggestionCache.makeKey(suggestUri, term);
+            results[i] = mCache.get(cacheKey);
+            if (results[i] == null) {
+                results[i] = getStored(cacheKey);
+            }
+            if (results[i] != null || !connected || mCache.isFailure(cacheKey)) {
+                continue;
+            }
+            // Each term is a session of its own, so that the terms do not supersede each
+            // other, but do supersede the same term of the caller's previous batch. Their
+            // fetches all count against the caller's share, though.
+            final Session session = new Session(caller, BATCH_PATH + i, historyAllowed);
+            mRequests.onQuery(session, cacheKey);
+            try {
+                fetches.set(i, mBatchExecutor.submit(new Callable<Suggestions>() {
+                    public Suggestions call() {
+                        return fetchSuggestions(session, session.mCaller, term, cacheKey);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                SearchStats.count(SearchStats.REJECTED);
+            }
+        }
+
+        long deadline = SystemClock.uptimeMillis() + mBatchDeadlineMs;
+        MatrixCursor cursor = new MatrixCursor(BATCH_COLUMNS);
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            String term = terms[i];
+            if (TextUtils.isEmpty(term)) {
+                continue;
+            }
+            Suggestions suggestions = results[i];
+            Future<Suggestions> fetch = fetches.get(i);
+            if (suggestions == null && fetch != null) {
+                suggestions = getBefore(fetch, deadline);
+            }
+            boolean offline = suggestions == null;
+            if (offline) {
+                suggestions = getLocalSuggestions(suggestUri, term);
+                SearchStats.count(SearchStats.OFFLINE);
+            }
+            suggestions = Suggestions.merge(getHistory(term, historyAllowed), suggestions);
+            for (int row = 0; row < suggestions.getCount(); row++) {
+                String suggestion = suggestions.getSuggestion(row);
+                cursor.addRow(new Object[] {
+                    id++,
+                    suggestion,
+                    suggestions.getPopularity(row),
+                    SuggestionsCursor.SUGGESTION_ICON,
+                    null,
+                    suggestion,
+                    offline ? 1 : 0,
+                    term
+                });
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Waits until a deadline for a fetch. A fetch that misses the deadline is left to
+     * finish, so that its result is cached for next time.
+     *
+     * @return The result of the fetch, or null if it failed or missed the deadline.
+     */
+    private static Suggestions getBefore(Future<Suggestions> fetch, long deadline) {
+        try {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            return fetch.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Log.w(LOG_TAG, "Error", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fetches suggestions from the network, sharing the request with any other session
+     * that is asking for the same query. If too many fetches are already running, in all or
+     * for this caller, this gives up at once rather than wait.
+     *
+     * @param session The typing session the query is part of, see {@link InFlightRequests}.
+     * @param caller Who the fetch counts against in {@link FetchLimiter}. Usually the same
+     *        as the session, but one caller may have several sessions.
+     * @return The suggestions, or null if they could not be fetched or are no longer wanted.
+     */
+    private Suggestions fetchSuggestions(Object session, final Object caller,
+            final String query, final String cacheKey) {
+        InFlightRequests.Fetcher fetcher = new InFlightRequests.Fetcher() {
+            public Suggestions fetch(InFlightRequests.Request request) {
+                if (!mLimiter.tryAcquire(caller)) {
+                    SearchStats.count(SearchStats.REJECTED);
+                    return null;
+                }
+                try {
+                    return fetchSuggestions(caller, request, query, cacheKey);
+                } finally {
+                    mLimiter.release(caller);
+                }
+            }
+        };
+        ConnectivityMonitor.State state = mConnectivity.getState();
+        Suggestions suggestions = mRequests.execute(session, cacheKey,
+                mPolicies[state.mNetworkClass].mDebounceMaxMs, fetcher);
+        if (suggestions != null && mPrefetchExecutor != null && session != PREFETCH_SESSION) {
+            mPrefetchExecutor.execute(new PrefetchTask(query, suggestions));
+        }
+        return suggestions;
+    }
+
+    /**
+     * Fetches suggestions from the network and adds them to the cache. If hedging is on and
+     * the request takes longer than most recent ones on this network, a second, identical
+     * request is sent, and whichever answers first wins. Nothing is sent while the circuit
+     * breaker is open.
+     *
+     * @return The suggestions, or null if they could not be fetched.
+     */
+    private Suggestions fetchSuggestions(Object caller, InFlightRequests.Request request,
+            String query, String cacheKey) {
+        long ticket = mBreaker.allowRequest();
+        if (ticket == CircuitBreaker.NO_TICKET) {
+            SearchStats.count(SearchStats.SHORT_CIRCUITED);
+            return null;
+        }
+        ConnectivityMonitor.State state = mConnectivity.getState();
+        SuggestPolicy policy = mPolicies[state.mNetworkClass];
+        String network = state.mKey;
+        // If this took the probe, it must be let go of however the fetch ends, or the
+        // breaker would stay half-open with no probe ever finishing. Any exit before a
+        // request has reported an outcome, including a runtime exception (e.g. from a
+        // malformed debug url), counts as cancelled.
+        boolean reported = false;
+        try {
+            long start = SearchStats.start();
+            String url = mUrlBuilder.buildSuggestUrl(query);
+            SearchStats.time(SearchStats.SUGGEST_BUILD_URL, start);
+            HttpUriRequest method = newSuggestRequest(url, cacheKey, network, policy);
+            if (!request.addMethod(method)) {
+                return null;
+            }
+            // Don't hedge a probe of a server that has been failing.
+            int hedgeDelay = mHedgeExecutor != null && mUseGet && mBreaker.isClosed()
+                    ? mLatencies.getPercentile(network, 95) : -1;
+            Suggestions suggestions = hedgeDelay < 0
+                    ? fetchSuggestions(request, method, cacheKey, network, ticket)
+                    : fetchHedged(caller, request, method, url, cacheKey, network, policy,
+                            hedgeDelay, ticket);
+            reported = true;
+            return suggestions;
+        } catch (UnsupportedEncodingException e) {
+            Log.w(LOG_TAG, "Error", e);
+            return null;
+        } finally {
+            if (!reported) {
+                mBreaker.onCancel(ticket);
+            }
+        }
+    }
+
+    /**
+     * Runs a fetch on the hedge executor, and races it against a second request if it is
+     * slow. The second request counts against the caller's share of fetches, and is not
+     * sent if that is used up or the executor is busy.
+     */
+    private Suggestions fetchHedged(final Object caller,
+            final InFlightRequests.Request request, final HttpUriRequest first, String url,
+            final String cacheKey, final String network, SuggestPolicy policy, int hedgeDelay,
+            final long ticket) throws UnsupportedEncodingException {
+        CompletionService<Suggestions> attempts =
+                new ExecutorCompletionService<Suggestions>(mHedgeExecutor);
+        Future<Suggestions> firstAttempt;
         try {
-            query = URLEncoder.encode(query, "UTF-8");
-            // NOTE:  This code uses resources to optionally select the search Uri, based on the
-            // MCC value from the SIM.  iThe default string will most likely be fine.  It is
-            // paramerterized to accept info from the Locale, the language code is the first
-            // parameter (%1$s) and the country code is the second (%2$s).  This code *must*
-            // function in the same way as a similar lookup in
-            // com.android.browser.BrowserActivity#onCreate().  If you change
-            // either of these functions, change them both.  (The same is true for the underlying
-            // resource strings, which are stored in mcc-specific xml files.)
-            if (mSuggestUri == null) {
-                Locale l = Locale.getDefault();
-                String language = l.getLanguage();
-                String country = l.getCountry().toLowerCase();
-                // Chinese and Portuguese have two langauge variants.
-                if ("zh".equals(language)) {
-                    if ("cn".equals(country)) {
-                        language = "zh-CN";
-                    } else if ("tw".equals(country)) {
-                        language = "zh-TW";
+            firstAttempt = attempts.submit(new Callable<Suggestions>() {
+                public Suggestions call() {
+                    return fetchSuggestions(request, first, cacheKey, network, ticket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return fetchSuggestions(request, first, cacheKey, network, ticket);
+        }
+        HttpUriRequest hedge = null;
+        int pending = 1;
+        try {
+            Future<Suggestions> done = attempts.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+            if (done == null && mLimiter.tryAcquire(caller)) {
+                final HttpUriRequest second = newSuggestRequest(url, cacheKey, network, policy);
+                boolean submitted = false;
+                if (request.addMethod(second)) {
+                    try {
+                        attempts.submit(new Callable<Suggestions>() {
+                            public Suggestions call() {
+                                try {
+                                    return fetchSuggestions(request, second, cacheKey,
+                                            network, ticket);
+                                } finally {
+                                    mLimiter.release(caller);
+                                }
+                            }
+                        });
+                        submitted = true;
+                        SearchStats.count(SearchStats.HEDGED);
+                        hedge = second;
+                        pending++;
+                    } catch (RejectedExecutionException e) {
+                        // Too busy to hedge; just wait for the first request.
                     }
-                } else if ("pt".equals(language)) {
-                    if ("br".equals(country)) {
-                        language = "pt-BR";
-                    } else if ("pt".equals(country)) {
-                        language = "pt-PT";
+                }
+                if (!submitted) {
+                    mLimiter.release(caller);
+                }
+            }
+            if (done == null) {
+                done = attempts.take();
+            }
+            while (true) {
+                pending--;
+                Suggestions suggestions = getQuietly(done);
+                if (suggestions != null || pending == 0) {
+                    // Stop the other request, if it is still going.
+                    if (pending > 0) {
+                        (done == firstAttempt ? hedge : first).abort();
                     }
+                    return suggestions;
                 }
-                mSuggestUri = getContext().getResources().getString(R.string.google_suggest_base,
-                                                                    language,
-                                                                    country)
-                        + "json=true&q=";
+                done = attempts.take();
             }
+        } catch (InterruptedException e) {
+            first.abort();
+            if (hedge != null) {
+                hedge.abort();
+            }
+            return null;
+        }
+    }
 
-            HttpPost method = new HttpPost(mSuggestUri + query);
-            StringEntity content = new StringEntity("");
-            method.setEntity(content);
+    private static Suggestions getQuietly(Future<Suggestions> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.w(LOG_TAG, "Error", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Sends one suggest request, records how long it took, and adds the response to the
+     * cache. The outcome is reported to the circuit breaker, and a failed query is
+     * remembered for a while.
+     *
+     * @param ticket From {@link CircuitBreaker#allowRequest()}.
+     * @return The suggestions, or null if they could not be fetched.
+     */
+    private Suggestions fetchSuggestions(InFlightRequests.Request request,
+            HttpUriRequest method, String cacheKey, String network, long ticket) {
+        long start = SystemClock.uptimeMillis();
+        long statsStart = SearchStats.start();
+        // If the history is cleared while this is on its way, don't put the response back.
+        int cacheGeneration = mCache.getGeneration();
+        int storeGeneration = mStore.getGeneration();
+        try {
+            SearchStats.count(SearchStats.NETWORK_REQUEST);
             HttpResponse response = mHttpClient.execute(method);
-            if (response.getStatusLine().getStatusCode() == 200) {
-
-                /* Goto http://www.google.com/complete/search?json=true&q=foo
-                 * to see what the data format looks like. It's basically a json
-                 * array containing 4 other arrays. We only care about the middle
-                 * 2 which contain the suggestions and their popularity.
-                 */
-                JSONArray results = new JSONArray(EntityUtils.toString(response.getEntity()));
-                JSONArray suggestions = results.getJSONArray(1);
-                JSONArray popularity = results.getJSONArray(2);
-                return new SuggestionsCursor(suggestions, popularity);
+            long responseStart = SearchStats.time(SearchStats.SUGGEST_REQUEST, statsStart);
+            HttpEntity entity = response.getEntity();
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                SearchStats.count(SearchStats.NOT_MODIFIED);
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                mBreaker.onSuccess(ticket);
+                return mCache.revalidate(cacheKey, getMaxAgeMillis(response));
+            } else if (statusCode == HttpStatus.SC_OK) {
+                String charset = EntityUtils.getContentCharSet(entity);
+                Suggestions suggestions;
+                try {
+                    suggestions = SuggestResponseParser.parse(getContent(entity),
+                            charset != null ? charset : HTTP.DEFAULT_CONTENT_CHARSET);
+                } finally {
+                    entity.consumeContent();
+                }
+                SearchStats.time(SearchStats.SUGGEST_RESPONSE, responseStart);
+                mBreaker.onSuccess(ticket);
+                Header etag = mUseGet ? response.getFirstHeader("ETag") : null;
+                long maxAge = getMaxAgeMillis(response);
+                // Even if the server says not to, remember for a little while that there
+                // is nothing to suggest, rather than ask again on the next refresh.
+                long ttl = maxAge == 0 && suggestions.getCount() == 0 ? mNegativeTtlMs : maxAge;
+                String etagValue = etag != null ? etag.getValue() : null;
+                mCache.put(cacheKey, suggestions, ttl, etagValue, cacheGeneration);
+                if (maxAge != 0) {
+                    // The stored copy expires when the cached one does.
+                    long expiresAt = System.currentTimeMillis() + mCache.getTtlMillis(maxAge);
+                    mStoreExecutor.execute(new StoreTask(cacheKey, suggestions, expiresAt,
+                            etagValue, storeGeneration));
+                }
+                mLatencies.addSample(network, SystemClock.uptimeMillis() - start);
+                return suggestions;
+            } else {
+                SearchStats.count(SearchStats.HTTP_ERROR);
+                if (entity != null) {
+                    entity.consumeContent();
+                }
             }
-        } catch (UnsupportedEncodingException e) {
-            Log.w(LOG_TAG, "Error", e);
         } catch (IOException e) {
+            if (method.isAborted()) {
+                mBreaker.onCancel(ticket);
+                return null;
+            }
+            // A timeout still tells us how slow the network is.
+            mLatencies.addSample(network, SystemClock.uptimeMillis() - start);
+            SearchStats.count(e instanceof InterruptedIOException
+                    ? SearchStats.TIMEOUT : SearchStats.IO_ERROR);
             Log.w(LOG_TAG, "Error", e);
         } catch (JSONException e) {
+            SearchStats.count(SearchStats.PARSE_ERROR);
             Log.w(LOG_TAG, "Error", e);
         }
+        mBreaker.onFailure(ticket);
+        mCache.putFailure(cacheKey, mNegativeTtlMs);
         return null;
     }
 
-    private boolean isNetworkConnected() {
-        NetworkInfo networkInfo = getActiveNetworkInfo();
-        return networkInfo != null && networkInfo.isConnected();
+    /**
+     * Builds the request for a suggest url. This is a GET, made conditional if we hold an
+     * expired response with an ETag, unless the config asks for the old-style empty POST.
+     */
+    private HttpUriRequest newSuggestRequest(String url, String cacheKey, String network,
+            SuggestPolicy policy) throws UnsupportedEncodingException {
+        HttpUriRequest method;
+        if (mUseGet) {
+            method = new HttpGet(url);
+            String etag = mCache.getETag(cacheKey);
+            if (etag != null) {
+                method.addHeader("If-None-Match", etag);
+            }
+        } else {
+            HttpPost post = new HttpPost(url);
+            StringEntity content = new StringEntity("");
+            post.setEntity(content);
+            method = post;
+        }
+        if (policy.mAcceptCompression) {
+            method.addHeader("Accept-Encoding", "gzip, deflate");
+        }
+        int timeout = getTimeoutMillis(network, policy);
+        HttpConnectionParams.setConnectionTimeout(method.getParams(), timeout);
+        HttpConnectionParams.setSoTimeout(method.getParams(), timeout);
+        return method;
     }
 
-    private NetworkInfo getActiveNetworkInfo() {
-        ConnectivityManager connectivity =
-                (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-        if (connectivity == null) {
-            return null;
+    /**
+     * Works out the connect and read timeout for a suggest request: twice the recent 95th
+     * percentile latency on this kind of network, within the bounds set for its class.
+     */
+    private int getTimeoutMillis(String network, SuggestPolicy policy) {
+        int p95 = mLatencies.getPercentile(network, 95);
+        if (p95 < 0) {
+            return policy.mTimeoutDefaultMs;
         }
-        return connectivity.getActiveNetworkInfo();
+        return Math.max(mTimeoutMinMs, Math.min(2 * p95, policy.mTimeoutMaxMs));
     }
 
-    private static class SuggestionsCursor extends AbstractCursor {
+    /**
+     * Gets the response body, undoing any gzip or deflate content encoding.
+     */
+    private static InputStream getContent(HttpEntity entity) throws IOException {
+        InputStream content = entity.getContent();
+        Header encoding = entity.getContentEncoding();
+        if (encoding != null) {
+            String value = encoding.getValue();
+            if ("gzip".equalsIgnoreCase(value)) {
+                return new GZIPInputStream(content);
+            } else if ("deflate".equalsIgnoreCase(value)) {
+                return new InflaterInputStream(content);
+            }
+        }
+        return content;
+    }
 
-        /* Contains the actual suggestions */
-        final JSONArray mSuggestions;
+    /**
+     * Works out how long a response may be cached for from its Cache-Control header.
+     *
+     * @return The lifetime in milliseconds, 0 if the response must not be reused without
+     *         revalidation, or -1 if the server did not say.
+     */
+    private static long getMaxAgeMillis(HttpResponse response) {
+        Header cacheControl = response.getFirstHeader("Cache-Control");
+        if (cacheControl == null) {
+            return -1;
+        }
+        long maxAge = -1;
+        for (String directive : cacheControl.getValue().split(",")) {
+            directive = directive.trim().toLowerCase();
+            if (directive.equals("no-cache") || directive.equals("no-store")) {
+                return 0;
+            } else if (directive.startsWith("max-age=")) {
+                try {
+                    maxAge = Long.parseLong(directive.substring("max-age=".length())) * 1000;
+                } catch (NumberFormatException e) {
+                    // ignore it, as a browser would
+                }
+            }
+        }
+        return maxAge;
+    }
 
-        /* This contains the popularity of each suggestion
-         * i.e. 165,000 results. It's not related to sorting.
+    /**
+     * A stream of queries, each superseding the one before, see {@link InFlightRequests}.
+     */
+    private static final class Session {
+        /**
+         * The calling process, which is what {@link FetchLimiter} shares fetches out by.
          */
-        final JSONArray mPopularity;
-        public SuggestionsCursor(JSONArray suggestions, JSONArray popularity) {
-            mSuggestions = suggestions;
-            mPopularity = popularity;
+        final Integer mCaller;
+
+        // Tells apart the sessions of one caller, or null.
+        private final String mName;
+
+        /**
+         * Whether the caller may see past queries, see {@link #HISTORY_PERMISSION}.
+         */
+        final boolean mHistoryAllowed;
+
+        Session(Integer caller, String name, boolean historyAllowed) {
+            mCaller = caller;
+            mName = name;
+            mHistoryAllowed = historyAllowed;
         }
 
         @Override
-        public int getCount() {
-            return mSuggestions.length();
+        public boolean equals(Object o) {
+            if (!(o instanceof Session)) {
+                return false;
+            }
+            Session other = (Session) o;
+            return mCaller.equals(other.mCaller)
+                    && (mName == null ? other.mName == null : mName.equals(other.mName));
         }
 
         @Override
-        public String[] getColumnNames() {
-            return COLUMNS;
+        public int hashCode() {
+            return 31 * mCaller.hashCode() + (mName == null ? 0 : mName.hashCode());
         }
 
         @Override
-        public String getString(int column) {
-            if (mPos == -1) return null;
-            try {
-                switch (column) {
-                    case COL_ID:
-                        return String.valueOf(mPos);
-                    case COL_TEXT_1:
-                    case COL_QUERY:
-                        return mSuggestions.getString(mPos);
-                    case COL_TEXT_2:
-                        return mPopularity.getString(mPos);
-                    case COL_ICON_1:
-                        return SUGGESTION_ICON;
-                    case COL_ICON_2:
-                        return null;
-                    default:
-                        Log.w(LOG_TAG, "Bad column: " + column);
-                        return null;
+        public String toString() {
+            return mName == null ? mCaller.toString() : mCaller + "/" + mName;
+        }
+    }
+
+    /**
+     * Fetches the suggestions for the queries the user is most likely to type next, so that
+     * they are in the cache by the time the user types them. This gives way to any other
+     * fetch, and stops as soon as the network is metered or the budget is spent.
+     */
+    private class PrefetchTask implements Runnable {
+        private final String mQuery;
+        private final Suggestions mSuggestions;
+
+        PrefetchTask(String query, Suggestions suggestions) {
+            mQuery = query;
+            mSuggestions = suggestions;
+        }
+
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            String suggestUri = mUrlBuilder.getSuggestUriPrefix();
+            for (String prefix : getNextPrefixes(mQuery, mSuggestions, mPrefetchCount)) {
+                String cacheKey = SuggestionCache.makeKey(suggestUri, prefix);
+                if (mCache.containsFresh(cacheKey)) {
+                    continue;
+                }
+                if (!mLimiter.isIdle() || !isPrefetchAllowed() || !mPrefetchBudget.tryRequest()) {
+                    return;
+                }
+                mRequests.onQuery(PREFETCH_SESSION, cacheKey);
+                Suggestions suggestions =
+                        fetchSuggestions(PREFETCH_SESSION, PREFETCH_SESSION, prefix, cacheKey);
+                if (suggestions != null) {
+                    mPrefetchBudget.addBytes(suggestions.sizeInBytes());
+                    SearchStats.count(SearchStats.PREFETCHED);
                 }
-            } catch (JSONException e) {
-                Log.w(LOG_TAG, "Error parsing response: " + e);
-                return null;
             }
+        }
+    }
 
+    /**
+     * Works out what the user is likely to type next: the query extended by the next
+     * character of each of the top suggestions that continue it.
+     */
+    private static ArrayList<String> getNextPrefixes(String query, Suggestions suggestions,
+            int max) {
+        String normalized = SuggestionCache.normalizeQuery(query);
+        ArrayList<String> prefixes = new ArrayList<String>(max);
+        for (int i = 0; i < suggestions.getCount() && prefixes.size() < max; i++) {
+            String suggestion = suggestions.getSuggestion(i);
+            if (suggestion == null) {
+                continue;
+            }
+            suggestion = SuggestionCache.normalizeQuery(suggestion);
+            if (suggestion.length() > normalized.length() && suggestion.startsWith(normalized)) {
+                String prefix = suggestion.substring(0, normalized.length() + 1);
+                if (!prefixes.contains(prefix)) {
+                    prefixes.add(prefix);
+                }
+            }
         }
+        return prefixes;
+    }
 
-        @Override
-        public double getDouble(int column) {
-            throw new UnsupportedOperationException();
+    /**
+     * Speculative requests are only made where the policy for the network class allows
+     * them, never on metered networks, i.e. mobile data or roaming, and only if the user
+     * allows background data and wants web suggestions at all. Nor are they made while the
+     * server has been failing, or the network has been slow.
+     */
+    private boolean isPrefetchAllowed() {
+        if (!mSettings.getState().mShowWebSuggestions || !mBreaker.isClosed()) {
+            return false;
         }
+        ConnectivityMonitor.State state = mConnectivity.getState();
+        SuggestPolicy policy = mPolicies[state.mNetworkClass];
+        return state.mConnected && !state.mMetered && policy.mPrefetch
+                && mConnectivity.isBackgroundDataAllowed()
+                && mLatencies.getPercentile(state.mKey, 95) < policy.mTimeoutMaxMs;
+    }
 
-        @Override
-        public float getFloat(int column) {
-            throw new UnsupportedOperationException();
+    /**
+     * Whether the network has lately been too slow for suggestions to be worth waiting
+     * for: at least one in twenty recent requests, and the last one, took as long as the
+     * longest timeout its class allows. Even so, a request is let through every
+     * {@link #SLOW_NETWORK_RETRY_MS}; once one comes back in time, requests are made as
+     * usual again.
+     */
+    private boolean isNetworkTooSlow(ConnectivityMonitor.State state) {
+        String network = state.mKey;
+        int maxMs = mPolicies[state.mNetworkClass].mTimeoutMaxMs;
+        if (mLatencies.getPercentile(network, 95) < maxMs
+                || mLatencies.getLastSample(network) < maxMs) {
+            return false;
         }
+        return SystemClock.uptimeMillis() - mLatencies.getLastSampleTime(network)
+                < SLOW_NETWORK_RETRY_MS;
+    }
 
-        @Override
-        public int getInt(int column) {
-            throw new UnsupportedOperationException();
+    /**
+     * Writes fetched suggestions to the on-disk store.
+     */
+    private class StoreTask implements Runnable {
+        private final String mCacheKey;
+        private final Suggestions mSuggestions;
+        private final long mExpiresAt;
+        private final String mETag;
+        private final int mGeneration;
+
+        StoreTask(String cacheKey, Suggestions suggestions, long expiresAt, String etag,
+                int generation) {
+            mCacheKey = cacheKey;
+            mSuggestions = suggestions;
+            mExpiresAt = expiresAt;
+            mETag = etag;
+            mGeneration = generation;
         }
 
-        @Override
-        public long getLong(int column) {
-            if (column == COL_ID) {
-                return mPos;        // use row# as the _Id
-            }
-            throw new UnsupportedOperationException();
+        public void run() {
+            mStore.put(mCacheKey, mSuggestions, mExpiresAt, mETag, mGeneration);
+        }
+    }
+
+    private Cursor queryStats() {
+        if (!"1".equals(SystemProperties.get(STATS_PROPERTY))) {
+            return null;
         }
+        StringWriter dump = new StringWriter();
+        PrintWriter pw = new PrintWriter(dump);
+        dump(null, pw, null);
+        pw.flush();
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id", COLUMN_LINE });
+        int id = 0;
+        for (String line : dump.toString().split("\n")) {
+            cursor.addRow(new Object[] { id++, line });
+        }
+        return cursor;
+    }
 
-        @Override
-        public short getShort(int column) {
-            throw new UnsupportedOperationException();
+    /**
+     * Prints the provider's timings, counters and cache state. {@code ContentProvider} does
+     * not offer dump() on the platform versions this is built for, so this is reached
+     * through a query on {@link #STATS_PATH}.
+     */
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        SearchStats.dump(pw);
+        if (!mInitialized) {
+            pw.println("Not initialized yet.");
+            return;
+        }
+        pw.println(mCache);
+        pw.println(mStore);
+        pw.println(mRequests);
+        pw.println(mLimiter);
+        pw.println(mBreaker);
+        pw.println(mMerger);
+        if (mPrefetchBudget != null) {
+            pw.println(mPrefetchBudget);
         }
+        pw.println(mLatencies);
+        ConnectivityMonitor.State state = mConnectivity.getState();
+        pw.println("network=" + state.mKey + ", connected=" + state.mConnected
+                + ", " + mPolicies[state.mNetworkClass]);
+    }
 
-        @Override
-        public boolean isNull(int column) {
-            throw new UnsupportedOperationException();
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        if (mInitialized) {
+            mUrlBuilder.invalidate();
         }
     }
 
@@ -289,8 +1306,25 @@ public class SuggestionProvider extends ContentProvider {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Clears the history, see {@link #HISTORY_PATH}, and returns once it is gone. This
+     * does file I/O, and so should not be called on the main thread.
+     */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        throw new UnsupportedOperationException();
+        if (uri.getPathSegments().size() != 1 || !HISTORY_PATH.equals(uri.getLastPathSegment())) {
+            throw new UnsupportedOperationException();
+        }
+        getContext().enforceCallingOrSelfPermission(HISTORY_PERMISSION,
+                "Clearing the search history");
+        if (!mInitialized) {
+            initializeNow();
+        }
+        mHistory.clear();
+        mCache.clear();
+        // Drop the suggestions waiting to be stored, so that they are not written back.
+        mStoreExecutor.getQueue().clear();
+        mStore.clear();
+        return 0;
     }
 }
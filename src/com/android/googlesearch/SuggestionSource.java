@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+/**
+ * Somewhere suggestions for a query can come from, e.g. the suggest server or the user's
+ * past queries. See {@link SuggestionMerger}.
+ */
+interface SuggestionSource {
+
+    /**
+     * A short name for the source, for debug output.
+     */
+    String getName();
+
+    /**
+     * Whether the source only looks at data in memory, and so can be asked on the calling
+     * thread. Other sources are asked on a thread of their own.
+     */
+    boolean isLocal();
+
+    /**
+     * Gets the suggestions for a query.
+     *
+     * @param session Identifies the stream of keystrokes the query is part of.
+     * @return The suggestions, or null if they could not be had.
+     */
+    Suggestions getSuggestions(Object session, String query);
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * An on-disk store of suggest responses, so that they survive the hosting process being
+ * killed. It backs the in-memory {@link SuggestionCache}.
+ *
+ * The file is a header followed by an append-only log of records:
+ * <pre>
+ *   header:  int MAGIC, int VERSION
+ *   record:  int payloadLength, int crc32(payload), payload
+ *   payload: long writtenAt, long expiresAt, UTF key, boolean hasETag, [UTF etag],
+ *            short count, count * (UTF suggestion, boolean hasPopularity, [UTF popularity])
+ * </pre>
+ * A record is served by {@link #get(String)} only until it expires as its response said,
+ * the same as in the {@link SuggestionCache}. Expired records are kept for a longer, fixed
+ * time, for when the server cannot be reached at all.
+ *
+ * A later record for the same key replaces an earlier one. Records are checked against their
+ * CRC when the file is opened, and a torn or corrupt tail (e.g. from a crash in the middle of
+ * an append) is cut off. When the file grows past its limit it is compacted into a new file,
+ * keeping only the newest live records, which then atomically replaces the old one.
+ *
+ * Reads go through a read-only memory mapping of the file. They do not take the lock that
+ * writes hold while they append, compact and sync the file. An append adds its record to a
+ * concurrent index that reads look records up in, after growing the mapping if it has to.
+ * The mapping grows in chunks, padding the file with zeros, which ends the log as a zero
+ * length would. A compaction publishes a new index and mapping for the new file, while
+ * reads that started before it keep using the old ones.
+ */
+class SuggestionStore {
+
+    private static final String LOG_TAG = "GoogleSearch";
+
+    private static final int MAGIC = 0x47535343;   // "GSSC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    // After compaction the file is at most this fraction of its limit, so that compactions
+    // do not happen on every append.
+    private static final float COMPACTED_FRACTION = 0.75f;
+
+    // The mapping grows by this much at a time, so that most appends do not remap the file.
+    private static final int MAP_CHUNK = 16 * 1024;
+
+    private final File mFile;
+    private final int mMaxBytes;
+    private final long mTtlMillis;
+
+    // Where each live record is, in the order they were written. Only used by writes.
+    private final LinkedHashMap<String, Record> mIndex = new LinkedHashMap<String, Record>();
+
+    private boolean mOpened;
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mMap;
+    private long mLength;
+
+    // What reads see, or null if the store has not been opened.
+    private volatile Snapshot mSnapshot;
+
+    // Changes whenever the store is cleared. Only changed under the lock.
+    private volatile int mGeneration;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private int mCompactionCount;
+
+    /**
+     * A stored response.
+     */
+    public static class Entry {
+        public final Suggestions mSuggestions;
+
+        /**
+         * When the response expires, in the {@link System#currentTimeMillis()} time base.
+         */
+        public final long mExpiresAt;
+
+        /**
+         * The entity tag of the response, or null.
+         */
+        public final String mETag;
+
+        Entry(Suggestions suggestions, long expiresAt, String etag) {
+            mSuggestions = suggestions;
+            mExpiresAt = expiresAt;
+            mETag = etag;
+        }
+    }
+
+    /**
+     * @param file Where to keep the store.
+     * @param maxBytes The size the file may grow to before it is compacted.
+     * @param ttlMillis How long a stored response is kept for use when the server cannot be
+     *        reached, whether or not it has expired.
+     */
+    public SuggestionStore(File file, int maxBytes, long ttlMillis) {
+        mFile = file;
+        mMaxBytes = maxBytes;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Gets the generation of the store, which changes whenever it is cleared. Get it before
+     * fetching a response to store, and pass it to {@link #put}. This does not take the
+     * lock.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Opens the store ahead of its first use, since that reads the whole file.
+     */
+    public synchronized void prewarm() {
+        open();
+    }
+
+    /**
+     * Gets the stored response for a key, or null if there is none or it has expired.
+     */
+    public Entry get(String key) {
+        Snapshot snapshot = getSnapshot();
+        long now = System.currentTimeMillis();
+        Record record = snapshot.mIndex.get(key);
+        Entry entry = null;
+        if (record != null && !isExpired(record, now) && now < record.mExpiresAt) {
+            entry = read(snapshot, record);
+        }
+        (entry != null ? mHitCount : mMissCount).incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Gets stored suggestions for a query or, failing that, for the longest prefix of it
+     * that has any, whether or not they have expired. This is for when the server cannot
+     * be reached. It does not count as a hit or miss.
+     */
+    public Suggestions getLongestPrefix(String suggestUri, String query) {
+        Snapshot snapshot = getSnapshot();
+        String normalized = SuggestionCache.normalizeQuery(query);
+        long now = System.currentTimeMillis();
+        for (int length = normalized.length(); length > 0; length--) {
+            Record record = snapshot.mIndex.get(suggestUri + normalized.substring(0, length));
+            if (record != null && !isExpired(record, now)) {
+                Entry entry = read(snapshot, record);
+                if (entry != null) {
+                    return entry.mSuggestions;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                open();
+                snapshot = mSnapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    private Entry read(Snapshot snapshot, Record record) {
+        try {
+            return readRecord(snapshot.mMap, record);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error reading suggestion store", e);
+            return null;
+        }
+    }
+
+    /**
+     * Appends a response to the store, compacting it first if it is full.
+     *
+     * @param expiresAt When the response expires, in the {@link System#currentTimeMillis()}
+     *        time base.
+     * @param etag The entity tag of the response, or null.
+     * @param generation From {@link #getGeneration()}. If the store has been cleared since,
+     *        the response is not added, since it may be what was cleared.
+     */
+    public synchronized void put(String key, Suggestions suggestions, long expiresAt,
+            String etag, int generation) {
+        if (generation != mGeneration || !open()) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            byte[] payload = encode(now, expiresAt, key, etag, suggestions);
+            if (payload.length > mMaxBytes / 4) {
+                // Don't let one odd response push out a large part of the store.
+                return;
+            }
+            if (mLength + RECORD_HEADER_SIZE + payload.length > mMaxBytes) {
+                compact(now, (int) (mMaxBytes * COMPACTED_FRACTION)
+                        - RECORD_HEADER_SIZE - payload.length);
+            }
+            long offset = mLength;
+            mRaf.seek(offset);
+            mRaf.writeInt(payload.length);
+            mRaf.writeInt(crc(payload, 0, payload.length));
+            mRaf.write(payload);
+            mLength = offset + RECORD_HEADER_SIZE + payload.length;
+            Record record = new Record(offset, payload.length, now, expiresAt);
+            mIndex.remove(key);
+            mIndex.put(key, record);
+            // Reads may see the record as soon as it is in the index, so the mapping they
+            // read it through must already cover it.
+            if (mLength > mMap.capacity()) {
+                map();
+                mSnapshot.mMap = mMap;
+            }
+            mSnapshot.mIndex.put(key, record);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error writing suggestion store", e);
+            reset();
+        }
+    }
+
+    /**
+     * Deletes everything in the store.
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        close();
+        mFile.delete();
+        mIndex.clear();
+        mOpened = false;
+        mSnapshot = null;
+    }
+
+    /**
+     * Opens the file and builds the index the first time the store is used.
+     *
+     * @return false if the store cannot be used.
+     */
+    private boolean open() {
+        if (mOpened) {
+            return mRaf != null;
+        }
+        mOpened = true;
+        try {
+            // Left over from a compaction that was cut short, if any.
+            getCompactionFile().delete();
+            mRaf = new RandomAccessFile(mFile, "rw");
+            if (mRaf.length() < HEADER_SIZE || mRaf.readInt() != MAGIC
+                    || mRaf.readInt() != VERSION) {
+                writeHeader(mRaf);
+            }
+            mLength = mRaf.length();
+            map();
+            loadIndex();
+            publish();
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error opening suggestion store", e);
+            reset();
+            mOpened = true;     // don't keep trying until the process restarts
+            mSnapshot = new Snapshot(new HashMap<String, Record>(), null);
+            return false;
+        }
+    }
+
+    /**
+     * Makes a copy of the index, with the current mapping, what reads see. This is only
+     * needed when the file has been replaced, as appends update what reads see as they go.
+     */
+    private void publish() {
+        mSnapshot = new Snapshot(new ConcurrentHashMap<String, Record>(mIndex), mMap);
+    }
+
+    private void loadIndex() throws IOException {
+        long now = System.currentTimeMillis();
+        long offset = HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= mLength) {
+            mMap.position((int) offset);
+            int length = mMap.getInt();
+            int crc = mMap.getInt();
+            if (length == 0) {
+                // The padding after the last record.
+                break;
+            }
+            if (length < 0 || offset + RECORD_HEADER_SIZE + length > mLength) {
+                Log.i(LOG_TAG, "Torn record in suggestion store at " + offset);
+                break;
+            }
+            byte[] payload = new byte[length];
+            mMap.get(payload);
+            if (crc(payload, 0, length) != crc) {
+                Log.i(LOG_TAG, "Corrupt record in suggestion store at " + offset);
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            long writtenAt = in.readLong();
+            long expiresAt = in.readLong();
+            String key = in.readUTF();
+            Record record = new Record(offset, length, writtenAt, expiresAt);
+            mIndex.remove(key);
+            if (!isExpired(record, now)) {
+                mIndex.put(key, record);
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        if (offset < mLength) {
+            // Pad the file with zeros again, so that nothing after the last good record
+            // can be mistaken for a record once later ones are appended.
+            mRaf.setLength(offset);
+            mLength = offset;
+            map();
+        }
+    }
+
+    private static Entry readRecord(MappedByteBuffer map, Record record) throws IOException {
+        // The mapping is shared by concurrent reads, so don't move its position.
+        ByteBuffer buffer = map.duplicate();
+        byte[] payload = new byte[record.mLength];
+        buffer.position((int) record.mOffset + RECORD_HEADER_SIZE);
+        buffer.get(payload);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        in.readLong();      // writtenAt
+        long expiresAt = in.readLong();
+        in.readUTF();       // key
+        String etag = in.readBoolean() ? in.readUTF() : null;
+        int count = in.readShort();
+        String[] suggestions = new String[count];
+        String[] popularity = new String[count];
+        for (int i = 0; i < count; i++) {
+            suggestions[i] = in.readUTF();
+            popularity[i] = in.readBoolean() ? in.readUTF() : null;
+        }
+        return new Entry(new Suggestions(suggestions, popularity), expiresAt, etag);
+    }
+
+    private static byte[] encode(long writtenAt, long expiresAt, String key, String etag,
+            Suggestions suggestions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(writtenAt);
+        out.writeLong(expiresAt);
+        out.writeUTF(key);
+        out.writeBoolean(etag != null);
+        if (etag != null) {
+            out.writeUTF(etag);
+        }
+        int count = suggestions.getCount();
+        out.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            out.writeUTF(suggestions.getSuggestion(i));
+            String popularity = suggestions.getPopularity(i);
+            out.writeBoolean(popularity != null);
+            if (popularity != null) {
+                out.writeUTF(popularity);
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rewrites the store with only the newest unexpired records that fit in the given size,
+     * then swaps it in for the old file. A crash at any point leaves either the old or the
+     * new file intact.
+     */
+    private void compact(long now, int maxBytes) throws IOException {
+        // Keep the newest records, i.e. walk the index backwards.
+        ArrayList<Map.Entry<String, Record>> entries =
+                new ArrayList<Map.Entry<String, Record>>(mIndex.entrySet());
+        ArrayList<Map.Entry<String, Record>> kept = new ArrayList<Map.Entry<String, Record>>();
+        long size = HEADER_SIZE;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Map.Entry<String, Record> entry = entries.get(i);
+            Record record = entry.getValue();
+            long recordSize = RECORD_HEADER_SIZE + record.mLength;
+            if (isExpired(record, now) || size + recordSize > maxBytes) {
+                continue;
+            }
+            size += recordSize;
+            kept.add(entry);
+        }
+
+        File tmp = getCompactionFile();
+        FileOutputStream fos = new FileOutputStream(tmp);
+        LinkedHashMap<String, Record> index = new LinkedHashMap<String, Record>();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long offset = HEADER_SIZE;
+            for (int i = kept.size() - 1; i >= 0; i--) {
+                Record record = kept.get(i).getValue();
+                mMap.position((int) record.mOffset);
+                byte[] bytes = new byte[RECORD_HEADER_SIZE + record.mLength];
+                mMap.get(bytes);
+                out.write(bytes);
+                index.put(kept.get(i).getKey(), new Record(offset, record.mLength,
+                        record.mWrittenAt, record.mExpiresAt));
+                offset += bytes.length;
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        close();
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mLength = mRaf.length();
+        map();
+        mIndex.clear();
+        mIndex.putAll(index);
+        mCompactionCount++;
+        // Reads that are still using the old mapping keep working, as it stays valid after
+        // the file is replaced.
+        publish();
+    }
+
+    private File getCompactionFile() {
+        return new File(mFile.getPath() + ".tmp");
+    }
+
+    /**
+     * Maps the file up to at least its length, rounded up to a whole chunk. The file is
+     * extended with zeros to the size of the mapping.
+     */
+    private void map() throws IOException {
+        long size = (mLength + MAP_CHUNK - 1) / MAP_CHUNK * MAP_CHUNK;
+        if (mRaf.length() < size) {
+            mRaf.setLength(size);
+        }
+        mMap = mRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    private static void writeHeader(RandomAccessFile raf) throws IOException {
+        raf.setLength(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+    }
+
+    /**
+     * Throws away the store after an I/O error, starting afresh on next use.
+     */
+    private void reset() {
+        close();
+        mFile.delete();
+        mIndex.clear();
+        mOpened = false;
+        mSnapshot = null;
+    }
+
+    private void close() {
+        mMap = null;
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mRaf = null;
+        }
+    }
+
+    /**
+     * Checks whether a record is too old to keep at all, whether or not it has expired.
+     */
+    private boolean isExpired(Record record, long now) {
+        // Also treat records from the future (the clock was changed) as expired.
+        return record.mWrittenAt > now || now - record.mWrittenAt >= mTtlMillis;
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SuggestionStore{records=" + mIndex.size()
+                + ", bytes=" + mLength + "/" + mMaxBytes
+                + ", hits=" + mHitCount.get()
+                + ", misses=" + mMissCount.get()
+                + ", compactions=" + mCompactionCount + "}";
+    }
+
+    private static class Record {
+        final long mOffset;
+        final int mLength;
+        final long mWrittenAt;
+        final long mExpiresAt;
+
+        Record(long offset, int length, long writtenAt, long expiresAt) {
+            mOffset = offset;
+            mLength = length;
+            mWrittenAt = writtenAt;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    private static class Snapshot {
+        final Map<String, Record> mIndex;
+
+        // Replaced by a larger mapping of the same file when an append goes past its end.
+        volatile MappedByteBuffer mMap;
+
+        Snapshot(Map<String, Record> index, MappedByteBuffer map) {
+            mIndex = index;
+            mMap = map;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import java.util.HashSet;
+
+/**
+ * An immutable list of suggestions as returned by the suggest server, along with the
+ * popularity (e.g. "165,000 results") of each one.
+ */
+class Suggestions {
+
+    // Rough per-string overhead (object header, char array header, hash, offset, count),
+    // used when estimating how much memory a set of suggestions occupies.
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    public static final Suggestions EMPTY = new Suggestions(new String[0], new String[0]);
+
+    private final String[] mSuggestions;
+
+    // May contain nulls, and may be shorter than mSuggestions.
+    private final String[] mPopularity;
+
+    public Suggestions(String[] suggestions, String[] popularity) {
+        mSuggestions = suggestions;
+        mPopularity = popularity;
+    }
+
+    public int getCount() {
+        return mSuggestions.length;
+    }
+
+    public String getSuggestion(int position) {
+        return mSuggestions[position];
+    }
+
+    public String getPopularity(int position) {
+        return position < mPopularity.length ? mPopularity[position] : null;
+    }
+
+    /**
+     * Returns the suggestions that start with the given prefix, ignoring case. This lets
+     * the results for a query be refined locally as the user keeps typing.
+     *
+     * @param prefix A query normalized with {@link SuggestionCache#normalizeQuery(String)}.
+     */
+    public Suggestions filter(String prefix) {
+        int count = 0;
+        boolean[] matches = new boolean[mSuggestions.length];
+        for (int i = 0; i < mSuggestions.length; i++) {
+            String suggestion = mSuggestions[i];
+            if (suggestion != null
+                    && suggestion.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                matches[i] = true;
+                count++;
+            }
+        }
+        if (count == mSuggestions.length) {
+            return this;
+        }
+        String[] suggestions = new String[count];
+        String[] popularity = new String[count];
+        int j = 0;
+        for (int i = 0; i < mSuggestions.length; i++) {
+            if (matches[i]) {
+                suggestions[j] = mSuggestions[i];
+                popularity[j] = getPopularity(i);
+                j++;
+            }
+        }
+        return new Suggestions(suggestions, popularity);
+    }
+
+    /**
+     * Returns the suggestions in {@code first}, followed by those in {@code second} that are
+     * not also in {@code first}, leaving out any suggestion that comes up more than once
+     * once normalized as by {@link SuggestionCache#normalizeQuery(String)}.
+     */
+    public static Suggestions merge(Suggestions first, Suggestions second) {
+        int firstCount = first.getCount();
+        String[] suggestions = new String[firstCount + second.getCount()];
+        String[] popularity = new String[suggestions.length];
+        HashSet<String> seen = new HashSet<String>(2 * suggestions.length);
+        int count = add(first, suggestions, popularity, 0, seen);
+        count = add(second, suggestions, popularity, count, seen);
+        if (count == suggestions.length) {
+            // Nothing was left out, so an empty list adds nothing to the other.
+            if (firstCount == 0) {
+                return second;
+            }
+            if (count == firstCount) {
+                return first;
+            }
+        } else {
+            String[] trimmedSuggestions = new String[count];
+            String[] trimmedPopularity = new String[count];
+            System.arraycopy(suggestions, 0, trimmedSuggestions, 0, count);
+            System.arraycopy(popularity, 0, trimmedPopularity, 0, count);
+            suggestions = trimmedSuggestions;
+            popularity = trimmedPopularity;
+        }
+        return new Suggestions(suggestions, popularity);
+    }
+
+    /**
+     * Copies the suggestions not seen yet into the arrays, starting at {@code count}.
+     *
+     * @return The new count.
+     */
+    private static int add(Suggestions from, String[] suggestions, String[] popularity,
+            int count, HashSet<String> seen) {
+        for (int i = 0; i < from.getCount(); i++) {
+            String suggestion = from.getSuggestion(i);
+            if (suggestion != null && seen.add(SuggestionCache.normalizeQuery(suggestion))) {
+                suggestions[count] = suggestion;
+                popularity[count] = from.getPopularity(i);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Estimates the number of bytes of heap held by these suggestions.
+     */
+    public int sizeInBytes() {
+        return sizeInBytes(mSuggestions) + sizeInBytes(mPopularity);
+    }
+
+    private static int sizeInBytes(String[] strings) {
+        int size = 4 * strings.length;
+        for (String s : strings) {
+            if (s != null) {
+                size += STRING_OVERHEAD_BYTES + 2 * s.length();
+            }
+        }
+        return size;
+    }
+}
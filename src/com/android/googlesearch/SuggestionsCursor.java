@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.app.SearchManager;
+import android.database.AbstractCursor;
+import android.database.CursorWindow;
+import android.util.Log;
+
+/**
+ * The cursor of suggestions returned by {@link SuggestionProvider}: past queries followed by
+ * web suggestions, all served straight from the arrays of a {@link Suggestions}.
+ */
+class SuggestionsCursor extends AbstractCursor {
+
+    private static final String LOG_TAG = "GoogleSearch";
+
+    /**
+     * See {@link SuggestionProvider#COLUMN_OFFLINE}.
+     */
+    static final String COLUMN_OFFLINE = "offline";
+
+    static final String SUGGESTION_ICON =
+            "android.resource://com.android.googlesearch/" + R.drawable.magnifying_glass;
+
+    /* The suggestion columns used */
+    static final String[] COLUMNS = new String[] {
+        "_id",
+        SearchManager.SUGGEST_COLUMN_TEXT_1,
+        SearchManager.SUGGEST_COLUMN_TEXT_2,
+        SearchManager.SUGGEST_COLUMN_ICON_1,
+        SearchManager.SUGGEST_COLUMN_ICON_2,
+        SearchManager.SUGGEST_COLUMN_QUERY,
+        COLUMN_OFFLINE
+    };
+
+    // Indexes into COLUMNS
+    private static final int COL_ID = 0;
+    private static final int COL_TEXT_1 = 1;
+    private static final int COL_TEXT_2 = 2;
+    private static final int COL_ICON_1 = 3;
+    private static final int COL_ICON_2 = 4;
+    private static final int COL_QUERY = 5;
+    private static final int COL_OFFLINE = 6;
+
+    // Pre-built values of the _id column for the first rows, which is all a suggest
+    // response ever has.
+    private static final String[] ROW_IDS = new String[20];
+    static {
+        for (int i = 0; i < ROW_IDS.length; i++) {
+            ROW_IDS[i] = String.valueOf(i);
+        }
+    }
+
+    /* Contains the actual suggestions, and the popularity of each suggestion
+     * i.e. 165,000 results. The popularity is not related to sorting.
+     * These are the past queries followed by the live suggestions.
+     */
+    private volatile Suggestions mSuggestions;
+
+    // Whether the suggestions come from local data because the server was unreachable.
+    private volatile boolean mOffline;
+
+    // If some of the sources had not answered when the cursor was built, their
+    // answers are merged in on requery.
+    private SuggestionMerger.Result mPending;
+
+    // The source of a merged result that asks the server, or -1.
+    private final int mLiveSource;
+
+    public SuggestionsCursor(Suggestions history, Suggestions suggestions) {
+        this(history, suggestions, false);
+    }
+
+    public SuggestionsCursor(Suggestions history, Suggestions suggestions, boolean offline) {
+        long start = SearchStats.start();
+        mOffline = offline;
+        mSuggestions = Suggestions.merge(history, suggestions);
+        mLiveSource = -1;
+        SearchStats.time(SearchStats.SUGGEST_CURSOR, start);
+    }
+
+    /**
+     * @param liveSource The source of the result that asks the server. If it turns out to
+     *        have failed, the rows are marked as offline, since they are all local.
+     */
+    public SuggestionsCursor(SuggestionMerger.Result result, int liveSource) {
+        long start = SearchStats.start();
+        mLiveSource = liveSource;
+        boolean complete = result.isComplete();
+        mOffline = complete && result.get(liveSource) == null;
+        mSuggestions = result.getSuggestions();
+        mPending = complete ? null : result;
+        SearchStats.time(SearchStats.SUGGEST_CURSOR, start);
+    }
+
+    @Override
+    public boolean requery() {
+        SuggestionMerger.Result pending = mPending;
+        if (pending != null) {
+            if (pending.isComplete()) {
+                mPending = null;
+                mOffline = pending.get(mLiveSource) == null;
+            }
+            mSuggestions = pending.getSuggestions();
+        }
+        return super.requery();
+    }
+
+    @Override
+    public int getCount() {
+        return mSuggestions.getCount();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return COLUMNS;
+    }
+
+    @Override
+    public String getString(int column) {
+        if (mPos == -1) return null;
+        return getString(mSuggestions, mOffline, mPos, column);
+    }
+
+    private static String getString(Suggestions suggestions, boolean offline, int row,
+            int column) {
+        switch (column) {
+            case COL_ID:
+                return row < ROW_IDS.length ? ROW_IDS[row] : String.valueOf(row);
+            case COL_TEXT_1:
+            case COL_QUERY:
+                return suggestions.getSuggestion(row);
+            case COL_TEXT_2:
+                return suggestions.getPopularity(row);
+            case COL_ICON_1:
+                return SUGGESTION_ICON;
+            case COL_ICON_2:
+                return null;
+            case COL_OFFLINE:
+                return offline ? "1" : "0";
+            default:
+                Log.w(LOG_TAG, "Bad column: " + column);
+                return null;
+        }
+    }
+
+    @Override
+    public double getDouble(int column) {
+        if (column == COL_ID) {
+            return mPos;
+        }
+        try {
+            String value = getString(column);
+            return value == null ? 0 : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        if (column == COL_ID) {
+            return mPos;        // use row# as the _Id
+        }
+        // Like SQLite, treat text that is not a number as 0.
+        try {
+            String value = getString(column);
+            return value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return column != COL_ID && getString(column) == null;
+    }
+
+    /**
+     * Copies rows into the window in one pass over the suggestion arrays, rather than
+     * moving the cursor and fetching each column through {@link #getString(int)}.
+     */
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        Suggestions suggestions = mSuggestions;
+        int count = suggestions.getCount();
+        if (position < 0 || position > count) {
+            return;
+        }
+        window.acquireReference();
+        try {
+            window.clear();
+            window.setStartPosition(position);
+            window.setNumColumns(COLUMNS.length);
+            for (int row = position; row < count; row++) {
+                if (!window.allocRow()) {
+                    break;
+                }
+                if (!fillRow(suggestions, mOffline, row, window)) {
+                    window.freeLastRow();
+                    break;
+                }
+            }
+        } catch (IllegalStateException e) {
+            // The window was closed under us; the caller will find out.
+        } finally {
+            window.releaseReference();
+        }
+    }
+
+    /**
+     * @return false if the window ran out of space.
+     */
+    private static boolean fillRow(Suggestions suggestions, boolean offline, int row,
+            CursorWindow window) {
+        if (!window.putLong(row, row, COL_ID)) {
+            return false;
+        }
+        for (int column = COL_ID + 1; column < COLUMNS.length; column++) {
+            String value = getString(suggestions, offline, row, column);
+            boolean ok = value == null
+                    ? window.putNull(row, column)
+                    : window.putString(value, row, column);
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays typing traces against a suggestion source with many users typing at once, and
+ * reports how long suggestions took to come back, how many requests reached the suggest
+ * server per character typed, and how many keystrokes were answered per second.
+ *
+ * Each simulated user is a thread of its own, working through the traces in turn, starting
+ * at a different one from the others. A keystroke's query is made once the delay before it
+ * has passed, or as soon as the query for the keystroke before it returns, whichever is
+ * later, just like the search dialog, which asks for suggestions on one thread.
+ */
+public class LoadDriver {
+
+    /**
+     * Something that can be asked for suggestions, e.g. the suggestion provider.
+     */
+    public interface Client {
+        /**
+         * Gets the suggestions for what is in the search box.
+         *
+         * @param session Which simulated user is asking.
+         * @return The number of suggestions.
+         */
+        int query(int session, String text) throws Exception;
+    }
+
+    private final Client mClient;
+    private final int mSessions;
+    private final int mRounds;
+    private final String mServerUrl;
+
+    /**
+     * @param client What to send the queries to.
+     * @param sessions How many users type at once.
+     * @param rounds How many times each user goes through all the traces.
+     * @param serverUrl The base url of the {@link StandInSuggestServer} that the client is
+     *        using, for counting requests, or null if there is none.
+     */
+    public LoadDriver(Client client, int sessions, int rounds, String serverUrl) {
+        mClient = client;
+        mSessions = sessions;
+        mRounds = rounds;
+        mServerUrl = serverUrl;
+    }
+
+    /**
+     * Runs the traces and waits for them to finish.
+     */
+    public Report run(final List<TypingTrace> traces) throws IOException, InterruptedException {
+        int keystrokes = 0;
+        int characters = 0;
+        for (TypingTrace trace : traces) {
+            keystrokes += trace.size();
+            for (int i = 0; i < trace.size(); i++) {
+                // Count what was typed, not what was deleted.
+                String before = i == 0 ? "" : trace.getText(i - 1);
+                characters += Math.max(0, trace.getText(i).length() - before.length());
+            }
+        }
+        keystrokes *= mSessions * mRounds;
+        characters *= mSessions * mRounds;
+
+        final long[] latencies = new long[keystrokes];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger empty = new AtomicInteger();
+        Thread[] users = new Thread[mSessions];
+        int requestsBefore = getServerRequestCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < mSessions; i++) {
+            final int session = i;
+            users[i] = new Thread("LoadDriver-" + i) {
+                @Override
+                public void run() {
+                    for (int round = 0; round < mRounds; round++) {
+                        for (int t = 0; t < traces.size(); t++) {
+                            replay(session, traces.get((session + t) % traces.size()),
+                                    latencies, next, failures, empty);
+                        }
+                    }
+                }
+            };
+            users[i].start();
+        }
+        for (Thread user : users) {
+            user.join();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        int requestsAfter = getServerRequestCount();
+        int requests = requestsBefore < 0 || requestsAfter < 0
+                ? -1 : requestsAfter - requestsBefore;
+        return new Report(latencies, characters, requests, failures.get(), empty.get(),
+                elapsedNanos);
+    }
+
+    private void replay(int session, TypingTrace trace, long[] latencies, AtomicInteger next,
+            AtomicInteger failures, AtomicInteger empty) {
+        long due = System.nanoTime();
+        for (int i = 0; i < trace.size(); i++) {
+            due += trace.getDelay(i) * 1000000L;
+            long wait = (due - System.nanoTime()) / 1000000L;
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            long start = System.nanoTime();
+            try {
+                if (mClient.query(session, trace.getText(i)) == 0) {
+                    empty.incrementAndGet();
+                }
+            } catch (Exception e) {
+                failures.incrementAndGet();
+            }
+            latencies[next.getAndIncrement()] = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Asks the stand-in server how many requests it has answered.
+     *
+     * @return The count, or -1 if it cannot be had.
+     */
+    private int getServerRequestCount() throws IOException {
+        if (mServerUrl == null) {
+            return -1;
+        }
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mServerUrl + "/stats").openConnection();
+        try {
+            InputStream in = connection.getInputStream();
+            StringBuilder stats = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                stats.append((char) c);
+            }
+            for (String stat : stats.toString().trim().split(" ")) {
+                if (stat.startsWith("requests=")) {
+                    return Integer.parseInt(stat.substring("requests=".length()));
+                }
+            }
+            return -1;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * What a run measured.
+     */
+    public static class Report {
+        private final long[] mSortedLatencies;
+        private final int mCharacters;
+        private final int mRequests;
+        private final int mFailures;
+        private final int mEmpty;
+        private final long mElapsedNanos;
+
+        Report(long[] latencies, int characters, int requests, int failures, int empty,
+                long elapsedNanos) {
+            mSortedLatencies = latencies.clone();
+            Arrays.sort(mSortedLatencies);
+            mCharacters = characters;
+            mRequests = requests;
+            mFailures = failures;
+            mEmpty = empty;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Gets a percentile of the time queries took, in microseconds.
+         */
+        public long getLatencyMicros(int percentile) {
+            if (mSortedLatencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * mSortedLatencies.length) - 1;
+            return mSortedLatencies[Math.max(0, index)] / 1000;
+        }
+
+        /**
+         * The number of requests that reached the suggest server per character typed, or
+         * -1 if unknown.
+         */
+        public float getRequestsPerCharacter() {
+            return mRequests < 0 || mCharacters == 0 ? -1 : (float) mRequests / mCharacters;
+        }
+
+        /**
+         * The number of keystrokes answered per second.
+         */
+        public float getThroughput() {
+            return mElapsedNanos == 0 ? 0 : mSortedLatencies.length * 1e9f / mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "keystrokes=" + mSortedLatencies.length
+                    + " characters=" + mCharacters
+                    + " p50=" + getLatencyMicros(50) + "us"
+                    + " p99=" + getLatencyMicros(99) + "us"
+                    + " max=" + getLatencyMicros(100) + "us"
+                    + " requests=" + mRequests
+                    + " requestsPerChar=" + getRequestsPerCharacter()
+                    + " throughput=" + getThroughput() + "/s"
+                    + " failures=" + mFailures
+                    + " empty=" + mEmpty
+                    + " elapsed=" + mElapsedNanos / 1000000 + "ms";
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for the suggest server, answering complete/search?json=true requests with
+ * made-up suggestions, so that the suggestion provider can be measured offline and
+ * reproducibly. How long it takes to answer, how often it fails or cuts a response short,
+ * and how big its responses are can all be set.
+ *
+ * Point the device at it with
+ * <pre>
+ *   adb shell setprop debug.googlesearch.suggest http://10.0.2.2:8080/complete/search?
+ * </pre>
+ * (10.0.2.2 being the development machine as seen from the emulator), and restart the
+ * search process. GET /stats returns how many requests it has answered, in what way.
+ */
+public class StandInSuggestServer {
+
+    private static final String STATS_PATH = "/stats";
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Random mRandom = new Random();
+
+    private volatile int mLatencyMillis;
+    private volatile int mJitterMillis;
+    private volatile int mErrorPercent;
+    private volatile int mTruncatePercent;
+    private volatile int mSuggestionCount = 10;
+    private volatile int mSuggestionLength;
+    private volatile int mMaxAgeSeconds = -1;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    private final AtomicInteger mTruncatedCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+    private final AtomicInteger mGzipCount = new AtomicInteger();
+
+    /**
+     * @param port The port to listen on, or 0 for any free one.
+     */
+    public StandInSuggestServer(int port) throws IOException {
+        mServerSocket = new ServerSocket(port);
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Sets how long each request takes to answer: the latency, plus a random amount up to
+     * the jitter.
+     */
+    public void setLatency(int latencyMillis, int jitterMillis) {
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+    }
+
+    /**
+     * Sets the percentage of requests answered with a server error.
+     */
+    public void setErrorPercent(int errorPercent) {
+        mErrorPercent = errorPercent;
+    }
+
+    /**
+     * Sets the percentage of responses whose connection is closed halfway through the body.
+     */
+    public void setTruncatePercent(int truncatePercent) {
+        mTruncatePercent = truncatePercent;
+    }
+
+    /**
+     * Sets the size of the responses.
+     *
+     * @param suggestionCount How many suggestions each response has.
+     * @param suggestionLength How many characters each suggestion has beyond the query.
+     */
+    public void setPayload(int suggestionCount, int suggestionLength) {
+        mSuggestionCount = suggestionCount;
+        mSuggestionLength = suggestionLength;
+    }
+
+    /**
+     * Sets the max-age sent in the Cache-Control header, or -1 to send none.
+     */
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+        mMaxAgeSeconds = maxAgeSeconds;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Starts accepting connections on a thread of its own.
+     */
+    public void start() {
+        Thread acceptor = new Thread("StandInSuggestServer") {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mExecutor.execute(new Runnable() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // Closed.
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void close() throws IOException {
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+    }
+
+    public String getStats() {
+        return "requests=" + mRequestCount
+                + " errors=" + mErrorCount
+                + " truncated=" + mTruncatedCount
+                + " notModified=" + mNotModifiedCount
+                + " gzip=" + mGzipCount;
+    }
+
+    /**
+     * Answers the requests on one connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.length() == 0) {
+                    break;
+                }
+                HashMap<String, String> headers = readHeaders(in);
+                String contentLength = headers.get("content-length");
+                if (contentLength != null) {
+                    skip(in, Integer.parseInt(contentLength));
+                }
+                String[] parts = requestLine.split(" ");
+                String target = parts.length > 1 ? parts[1] : "/";
+                boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"))
+                        && requestLine.endsWith("HTTP/1.1");
+                if (!respond(target, headers, out, keepAlive) || !keepAlive) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away.
+        } catch (InterruptedException e) {
+            // Shutting down.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+
+    /**
+     * @return false if the connection must be closed.
+     */
+    private boolean respond(String target, HashMap<String, String> headers, OutputStream out,
+            boolean keepAlive) throws IOException, InterruptedException {
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        if (STATS_PATH.equals(path)) {
+            writeResponse(out, "200 OK", "text/plain", null, getStats().getBytes("UTF-8"),
+                    keepAlive);
+            return true;
+        }
+
+        mRequestCount.incrementAndGet();
+        int jitter = mJitterMillis;
+        long latency = mLatencyMillis + (jitter > 0 ? nextInt(jitter + 1) : 0);
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+        if (nextInt(100) < mErrorPercent) {
+            mErrorCount.incrementAndGet();
+            writeResponse(out, "500 Internal Server Error", "text/plain", null, new byte[0],
+                    keepAlive);
+            return true;
+        }
+
+        String q = query < 0 ? "" : getParameter(target.substring(query + 1), "q");
+        byte[] body = buildResponse(q).getBytes("UTF-8");
+        String etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+        StringBuilder extraHeaders = new StringBuilder();
+        extraHeaders.append("ETag: ").append(etag).append("\r\n");
+        if (mMaxAgeSeconds >= 0) {
+            extraHeaders.append("Cache-Control: max-age=").append(mMaxAgeSeconds)
+                    .append("\r\n");
+        }
+        if (etag.equals(headers.get("if-none-match"))) {
+            mNotModifiedCount.incrementAndGet();
+            writeResponse(out, "304 Not Modified", null, extraHeaders.toString(), null,
+                    keepAlive);
+            return true;
+        }
+        String acceptEncoding = headers.get("accept-encoding");
+        if (acceptEncoding != null && acceptEncoding.indexOf("gzip") >= 0) {
+            mGzipCount.incrementAndGet();
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream(body.length);
+            GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+            gzip.write(body);
+            gzip.close();
+            body = gzipped.toByteArray();
+            extraHeaders.append("Content-Encoding: gzip\r\n");
+        }
+        if (nextInt(100) < mTruncatePercent) {
+            // Promise the whole body, send half of it, and hang up.
+            mTruncatedCount.incrementAndGet();
+            writeHead(out, "200 OK", "application/json; charset=UTF-8",
+                    extraHeaders.toString(), body.length, false);
+            out.write(body, 0, body.length / 2);
+            out.flush();
+            return false;
+        }
+        writeResponse(out, "200 OK", "application/json; charset=UTF-8",
+                extraHeaders.toString(), body, keepAlive);
+        return true;
+    }
+
+    /**
+     * Builds a response in the format of complete/search?json=true: the query, the
+     * suggestions, their popularity, and an (empty) array we never read.
+     */
+    String buildResponse(String query) {
+        int count = mSuggestionCount;
+        int length = mSuggestionLength;
+        StringBuilder json = new StringBuilder(64 + count * (2 * query.length() + length + 24));
+        json.append('[');
+        appendString(json, query);
+        json.append(",[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            StringBuilder suggestion = new StringBuilder(query.length() + length + 4);
+            suggestion.append(query).append(' ').append((char) ('a' + i % 26));
+            while (suggestion.length() < query.length() + length) {
+                suggestion.append((char) ('a' + suggestion.length() % 26));
+            }
+            appendString(json, suggestion.toString());
+        }
+        json.append("],[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            appendString(json, (count - i) * 1000 + " results");
+        }
+        return json.append("],[]]").toString();
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private synchronized int nextInt(int n) {
+        return mRandom.nextInt(n);
+    }
+
+    private static void writeResponse(OutputStream out, String status, String contentType,
+            String extraHeaders, byte[] body, boolean keepAlive) throws IOException {
+        writeHead(out, status, contentType, extraHeaders, body == null ? 0 : body.length,
+                keepAlive);
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private static void writeHead(OutputStream out, String status, String contentType,
+            String extraHeaders, int contentLength, boolean keepAlive) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (extraHeaders != null) {
+            head.append(extraHeaders);
+        }
+        head.append("Content-Length: ").append(contentLength).append("\r\n");
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        head.append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+    }
+
+    private static String getParameter(String queryString, String name) throws IOException {
+        for (String parameter : queryString.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+                return URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+            }
+        }
+        return "";
+    }
+
+    private static HashMap<String, String> readHeaders(InputStream in) throws IOException {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Reads a line of http head, without the line end.
+     *
+     * @return The line, or null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(80);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static void skip(InputStream in, int count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    return;
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static final String USAGE =
+            "Usage: java -jar googlesearch-loadtest.jar [options]\n"
+            + "  --port N               port to listen on (default 8080)\n"
+            + "  --latency-ms N         time taken to answer each request (default 0)\n"
+            + "  --jitter-ms N          random extra time, up to N (default 0)\n"
+            + "  --error-percent N      percentage of requests failed with 500 (default 0)\n"
+            + "  --truncate-percent N   percentage of responses cut off halfway (default 0)\n"
+            + "  --suggestions N        suggestions per response (default 10)\n"
+            + "  --suggestion-length N  characters per suggestion beyond the query (default 0)\n"
+            + "  --max-age N            Cache-Control max-age in seconds (default: none)\n";
+
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        int latency = 0;
+        int jitter = 0;
+        int errorPercent = 0;
+        int truncatePercent = 0;
+        int suggestions = 10;
+        int suggestionLength = 0;
+        int maxAge = -1;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 == args.length || "--help".equals(arg)) {
+                System.err.print(USAGE);
+                System.exit("--help".equals(arg) ? 0 : 1);
+            }
+            int value = Integer.parseInt(args[++i]);
+            if ("--port".equals(arg)) {
+                port = value;
+            } else if ("--latency-ms".equals(arg)) {
+                latency = value;
+            } else if ("--jitter-ms".equals(arg)) {
+                jitter = value;
+            } else if ("--error-percent".equals(arg)) {
+                errorPercent = value;
+            } else if ("--truncate-percent".equals(arg)) {
+                truncatePercent = value;
+            } else if ("--suggestions".equals(arg)) {
+                suggestions = value;
+            } else if ("--suggestion-length".equals(arg)) {
+                suggestionLength = value;
+            } else if ("--max-age".equals(arg)) {
+                maxAge = value;
+            } else {
+                System.err.print(USAGE);
+                System.exit(1);
+            }
+        }
+
+        final StandInSuggestServer server = new StandInSuggestServer(port);
+        server.setLatency(latency, jitter);
+        server.setErrorPercent(errorPercent);
+        server.setTruncatePercent(truncatePercent);
+        server.setPayload(suggestions, suggestionLength);
+        server.setMaxAgeSeconds(maxAge);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println(server.getStats());
+            }
+        });
+        server.start();
+        System.out.println("Listening on port " + server.getPort() + ". On the device, run");
+        System.out.println("  adb shell setprop debug.googlesearch.suggest "
+                + "http://10.0.2.2:" + server.getPort() + "/complete/search?");
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
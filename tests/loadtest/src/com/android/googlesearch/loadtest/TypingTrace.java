@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The keystrokes of one user typing one query into the search box: what the box held after
+ * each keystroke, and how long after the one before it came.
+ *
+ * In a trace file, each line is a keystroke, written as the delay in milliseconds, a space,
+ * and the text of the search box, which may be empty (e.g. after deleting everything).
+ * Blank lines separate traces, and lines starting with '#' are ignored:
+ * <pre>
+ *   0 w
+ *   180 we
+ *   140 wea
+ *   400 we
+ *   210 wet
+ * </pre>
+ */
+public class TypingTrace {
+
+    private final long[] mDelays;
+    private final String[] mTexts;
+
+    public TypingTrace(long[] delays, String[] texts) {
+        if (delays.length != texts.length) {
+            throw new IllegalArgumentException("delays and texts differ in length");
+        }
+        mDelays = delays;
+        mTexts = texts;
+    }
+
+    /**
+     * Makes the trace of typing a query one character at a time, at a steady pace.
+     */
+    public static TypingTrace typing(String query, long delayMillis) {
+        long[] delays = new long[query.length()];
+        String[] texts = new String[query.length()];
+        for (int i = 0; i < texts.length; i++) {
+            delays[i] = i == 0 ? 0 : delayMillis;
+            texts[i] = query.substring(0, i + 1);
+        }
+        return new TypingTrace(delays, texts);
+    }
+
+    /**
+     * Reads traces in the format described above.
+     */
+    public static List<TypingTrace> read(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<TypingTrace> traces = new ArrayList<TypingTrace>();
+        ArrayList<Long> delays = new ArrayList<Long>();
+        ArrayList<String> texts = new ArrayList<String>();
+        String line;
+        int lineNumber = 0;
+        while (true) {
+            line = in.readLine();
+            lineNumber++;
+            if (line == null || line.trim().length() == 0) {
+                if (!texts.isEmpty()) {
+                    long[] delayArray = new long[delays.size()];
+                    for (int i = 0; i < delayArray.length; i++) {
+                        delayArray[i] = delays.get(i);
+                    }
+                    traces.add(new TypingTrace(delayArray,
+                            texts.toArray(new String[texts.size()])));
+                    delays.clear();
+                    texts.clear();
+                }
+                if (line == null) {
+                    return traces;
+                }
+                continue;
+            }
+            if (line.startsWith("#")) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            try {
+                delays.add(Long.parseLong(space < 0 ? line : line.substring(0, space)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad delay on line " + lineNumber + ": " + line);
+            }
+            texts.add(space < 0 ? "" : line.substring(space + 1));
+        }
+    }
+
+    /**
+     * The number of keystrokes.
+     */
+    public int size() {
+        return mTexts.length;
+    }
+
+    /**
+     * How long after the keystroke before it a keystroke came, in milliseconds.
+     */
+    public long getDelay(int keystroke) {
+        return mDelays[keystroke];
+    }
+
+    /**
+     * What the search box held after a keystroke.
+     */
+    public String getText(int keystroke) {
+        return mTexts[keystroke];
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link CircuitBreaker}, on a clock that only moves when told to.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 4000;
+
+    private static class TestBreaker extends CircuitBreaker {
+        long mNow = 100000;
+
+        TestBreaker() {
+            // Trips once at least half of at least 4 recent requests have failed.
+            super(50, 4, MIN_BACKOFF, MAX_BACKOFF);
+        }
+
+        @Override
+        long now() {
+            return mNow;
+        }
+    }
+
+    private TestBreaker mBreaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBreaker = new TestBreaker();
+    }
+
+    private long allow() {
+        long ticket = mBreaker.allowRequest();
+        assertTrue(ticket != CircuitBreaker.NO_TICKET);
+        return ticket;
+    }
+
+    private void assertNotAllowed() {
+        assertEquals(CircuitBreaker.NO_TICKET, mBreaker.allowRequest());
+    }
+
+    private void request(boolean succeed) {
+        long ticket = allow();
+        if (succeed) {
+            mBreaker.onSuccess(ticket);
+        } else {
+            mBreaker.onFailure(ticket);
+        }
+    }
+
+    private void trip() {
+        for (int i = 0; i < 4; i++) {
+            request(false);
+        }
+        assertFalse(mBreaker.isClosed());
+    }
+
+    public void testStaysClosedUntilEnoughRequests() {
+        request(false);
+        request(false);
+        request(false);
+        assertTrue(mBreaker.isClosed());
+        assertFalse(mBreaker.isOpen());
+        allow();
+    }
+
+    public void testStaysClosedBelowThreshold() {
+        request(true);
+        request(true);
+        request(true);
+        request(false);
+        request(false);
+        // 2 of 5 failed.
+        assertTrue(mBreaker.isClosed());
+    }
+
+    public void testTripsAtThreshold() {
+        request(true);
+        request(false);
+        request(true);
+        request(false);
+        // 2 of 4 failed.
+        assertFalse(mBreaker.isClosed());
+        assertTrue(mBreaker.isOpen());
+        assertNotAllowed();
+    }
+
+    public void testOldOutcomesAgeOut() {
+        // Enough successes push earlier failures out of the window.
+        request(false);
+        request(false);
+        for (int i = 0; i < 40; i++) {
+            request(true);
+        }
+        request(false);
+        request(false);
+        request(false);
+        assertTrue(mBreaker.isClosed());
+    }
+
+    public void testProbeAfterBackoff() {
+        trip();
+        mBreaker.mNow += MIN_BACKOFF - 1;
+        assertTrue(mBreaker.isOpen());
+        assertNotAllowed();
+        mBreaker.mNow++;
+        assertFalse(mBreaker.isOpen());
+        allow();
+        // Only one probe at a time.
+        assertTrue(mBreaker.isOpen());
+        assertNotAllowed();
+    }
+
+    public void testProbeSuccessCloses() {
+        trip();
+        mBreaker.mNow += MIN_BACKOFF;
+        request(true);
+        assertTrue(mBreaker.isClosed());
+        // The failures from before the trip are forgotten.
+        request(false);
+        request(false);
+        request(false);
+        assertTrue(mBreaker.isClosed());
+    }
+
+    /**
+     * Checks that the breaker lets the probe through after the given backoff, and not before.
+     *
+     * @return The probe's ticket.
+     */
+    private long assertProbeAfter(long backoff) {
+        mBreaker.mNow += backoff - 1;
+        assertNotAllowed();
+        mBreaker.mNow++;
+        return allow();
+    }
+
+    public void testFailedProbeDoublesBackoff() {
+        trip();
+        mBreaker.onFailure(assertProbeAfter(MIN_BACKOFF));
+        mBreaker.onFailure(assertProbeAfter(2 * MIN_BACKOFF));
+        mBreaker.onFailure(assertProbeAfter(4 * MIN_BACKOFF));
+        // No longer than the maximum.
+        mBreaker.onSuccess(assertProbeAfter(MAX_BACKOFF));
+        assertTrue(mBreaker.isClosed());
+    }
+
+    public void testBackoffStartsOverAfterClosing() {
+        trip();
+        mBreaker.onFailure(assertProbeAfter(MIN_BACKOFF));
+        mBreaker.onSuccess(assertProbeAfter(2 * MIN_BACKOFF));
+        trip();
+        assertProbeAfter(MIN_BACKOFF);
+    }
+
+    public void testCancelledProbeIsReleased() {
+        trip();
+        mBreaker.mNow += MIN_BACKOFF;
+        long probe = allow();
+        assertNotAllowed();
+        mBreaker.onCancel(probe);
+        // Still half-open, and another request may probe.
+        assertFalse(mBreaker.isClosed());
+        assertFalse(mBreaker.isOpen());
+        mBreaker.onSuccess(allow());
+        assertTrue(mBreaker.isClosed());
+    }
+
+    public void testCancelWhileClosedIsIgnored() {
+        request(false);
+        request(false);
+        request(false);
+        mBreaker.onCancel(allow());
+        // The cancelled request was not counted either way.
+        request(false);
+        assertFalse(mBreaker.isClosed());
+    }
+
+    public void testStaleCancelDoesNotReleaseProbe() {
+        // Sent while closed, still running when the breaker trips.
+        long stale = allow();
+        trip();
+        mBreaker.mNow += MIN_BACKOFF;
+        long probe = allow();
+        // The user typed on, and the old request was given up on.
+        mBreaker.onCancel(stale);
+        assertTrue(mBreaker.isOpen());
+        assertNotAllowed();
+        mBreaker.onCancel(probe);
+        allow();
+    }
+
+    public void testStaleSuccessDoesNotClose() {
+        long stale = allow();
+        trip();
+        mBreaker.onSuccess(stale);
+        assertFalse(mBreaker.isClosed());
+        mBreaker.mNow += MIN_BACKOFF;
+        long probe = allow();
+        // A late answer to a request sent before the trip says nothing about the server now.
+        mBreaker.onSuccess(stale);
+        assertFalse(mBreaker.isClosed());
+        assertNotAllowed();
+        mBreaker.onFailure(stale);
+        // Nor does a late failure reopen the breaker; the probe still decides.
+        assertNotAllowed();
+        mBreaker.onSuccess(probe);
+        assertTrue(mBreaker.isClosed());
+    }
+
+    public void testStaleFailureDoesNotExtendBackoff() {
+        long stale = allow();
+        trip();
+        mBreaker.onFailure(stale);
+        assertProbeAfter(MIN_BACKOFF);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import org.json.JSONException;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Tests for {@link SuggestResponseParser}.
+ */
+public class SuggestResponseParserTest extends TestCase {
+
+    private static Suggestions parse(String json) throws IOException, JSONException {
+        return parse(json.getBytes("UTF-8"), "UTF-8");
+    }
+
+    private static Suggestions parse(byte[] body, String charset)
+            throws IOException, JSONException {
+        return SuggestResponseParser.parse(new ByteArrayInputStream(body), charset);
+    }
+
+    private static void assertSuggestions(Suggestions suggestions, String... expected) {
+        assertEquals(expected.length, suggestions.getCount());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], suggestions.getSuggestion(i));
+        }
+    }
+
+    private static void assertMalformed(String json) throws IOException {
+        try {
+            parse(json);
+            fail("Parsed " + json);
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+
+    public void testResponse() throws Exception {
+        Suggestions suggestions = parse("[\"foo\",[\"foo\",\"food\"],"
+                + "[\"100 results\",\"50 results\"],[\"\",\"\"]]");
+        assertSuggestions(suggestions, "foo", "food");
+        assertEquals("100 results", suggestions.getPopularity(0));
+        assertEquals("50 results", suggestions.getPopularity(1));
+    }
+
+    public void testWhitespace() throws Exception {
+        Suggestions suggestions = parse(" [ \"foo\" ,\n[ \"foo\" , \"food\" ] ,\t[ ] ] ");
+        assertSuggestions(suggestions, "foo", "food");
+        assertNull(suggestions.getPopularity(0));
+    }
+
+    public void testEmpty() throws Exception {
+        assertSuggestions(parse("[\"foo\",[],[]]"));
+    }
+
+    public void testSkipsStructuredQuery() throws Exception {
+        // The first element is skipped whatever it is, strings with brackets in it and all.
+        assertSuggestions(parse("[{\"q\":[\"a]\\\"\",{}]},[\"foo\"],[]]"), "foo");
+        assertSuggestions(parse("[12,[\"foo\"],[]]"), "foo");
+    }
+
+    public void testIgnoresTrailingData() throws Exception {
+        // Nothing after the popularity array is read, so it need not even be well formed.
+        assertSuggestions(parse("[\"foo\",[\"foo\"],[\"1\"],[garbage"), "foo");
+    }
+
+    public void testManySuggestions() throws Exception {
+        StringBuilder json = new StringBuilder("[\"q\",[");
+        for (int i = 0; i < 100; i++) {
+            json.append(i == 0 ? "" : ",").append("\"suggestion ").append(i).append('"');
+        }
+        json.append("],[]]");
+        Suggestions suggestions = parse(json.toString());
+        assertEquals(100, suggestions.getCount());
+        assertEquals("suggestion 99", suggestions.getSuggestion(99));
+    }
+
+    public void testScalars() throws Exception {
+        // Returned as strings, the way JSONArray.getString() would.
+        Suggestions suggestions = parse("[\"q\",[\"a\",\"b\",\"c\"],[12,true,-1.5e3]]");
+        assertEquals("12", suggestions.getPopularity(0));
+        assertEquals("true", suggestions.getPopularity(1));
+        assertEquals("-1.5e3", suggestions.getPopularity(2));
+    }
+
+    public void testNullElements() throws Exception {
+        Suggestions suggestions = parse("[null,[\"a\",null],[null , \"1\"]]");
+        assertSuggestions(suggestions, "a", "null");
+        assertEquals("null", suggestions.getPopularity(0));
+        assertEquals("1", suggestions.getPopularity(1));
+    }
+
+    public void testTruncated() throws Exception {
+        String json = "[\"foo\",[\"foo\",\"f\\u00f6od\"],[\"100\",\"50\"]]";
+        // Every proper prefix that ends before the popularity array is closed.
+        for (int length = 0; length < json.length() - 1; length++) {
+            assertMalformed(json.substring(0, length));
+        }
+        assertSuggestions(parse(json.substring(0, json.length() - 1)), "foo", "f\u00f6od");
+    }
+
+    public void testTruncatedInMultiByteCharacter() throws Exception {
+        byte[] body = "[\"q\",[\"caf\u00e9\"".getBytes("UTF-8");
+        byte[] truncated = new byte[body.length - 2];
+        System.arraycopy(body, 0, truncated, 0, truncated.length);
+        try {
+            parse(truncated, "UTF-8");
+            fail();
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+
+    public void testWrongShape() throws Exception {
+        assertMalformed("");
+        assertMalformed("{\"q\":\"foo\"}");
+        assertMalformed("\"foo\"");
+        assertMalformed("[\"foo\"]");
+        assertMalformed("[\"foo\",\"foo\",[]]");
+        assertMalformed("[\"foo\",[\"foo\"],{}]");
+        assertMalformed("[\"foo\",[[\"foo\"]],[]]");
+        assertMalformed("[\"foo\",[{\"a\":1}],[]]");
+        assertMalformed("[\"foo\",[\"a\" \"b\"],[]]");
+        assertMalformed("[\"foo\" [\"a\"],[]]");
+    }
+
+    public void testEscapes() throws Exception {
+        Suggestions suggestions = parse("[\"q\",[\"\\\"\\\\\\/\\b\\f\\n\\r\\t\","
+                + "\"caf\\u00e9\",\"\\u00E9\\u0041\"],[]]");
+        assertSuggestions(suggestions, "\"\\/\b\f\n\r\t", "caf\u00e9", "\u00e9A");
+    }
+
+    public void testInvalidEscape() throws Exception {
+        assertMalformed("[\"q\",[\"\\u00g9\"],[]]");
+        assertMalformed("[\"q\",[\"\\u00\"],[]]");
+    }
+
+    public void testSurrogates() throws Exception {
+        // U+1F600, escaped as a surrogate pair, and as it is in UTF-8.
+        String expected = "smile \ud83d\ude00";
+        assertSuggestions(parse("[\"q\",[\"smile \\ud83d\\ude00\"],[]]"), expected);
+        assertSuggestions(parse("[\"q\",[\"" + expected + "\"],[]]"), expected);
+    }
+
+    public void testEscapeAcrossBuffers() throws Exception {
+        // The parser reads 512 characters at a time; make escapes and surrogate pairs
+        // straddle every possible boundary near it.
+        for (int padding = 500; padding < 520; padding++) {
+            StringBuilder prefix = new StringBuilder();
+            for (int i = 0; i < padding; i++) {
+                prefix.append('x');
+            }
+            Suggestions suggestions = parse("[\"q\",[\"" + prefix + "\\u00e9\\\"\","
+                    + "\"" + prefix + "\ud83d\ude00\"],[]]");
+            assertSuggestions(suggestions, prefix + "\u00e9\"", prefix + "\ud83d\ude00");
+        }
+    }
+
+    public void testCharsets() throws Exception {
+        String json = "[\"q\",[\"caf\u00e9 na\u00efve\"],[]]";
+        String expected = "caf\u00e9 na\u00efve";
+        assertSuggestions(parse(json.getBytes("UTF-8"), "UTF-8"), expected);
+        assertSuggestions(parse(json.getBytes("ISO-8859-1"), "ISO-8859-1"), expected);
+        assertSuggestions(parse(json.getBytes("UTF-16BE"), "UTF-16BE"), expected);
+        // Read with the wrong charset, the bytes come out as different characters, but the
+        // structure, being ASCII, is intact.
+        assertSuggestions(parse(json.getBytes("UTF-8"), "ISO-8859-1"),
+                new String(expected.getBytes("UTF-8"), "ISO-8859-1"));
+    }
+
+    public void testUnsupportedCharset() throws Exception {
+        try {
+            parse("[\"q\",[],[]]".getBytes("UTF-8"), "no-such-charset");
+            fail();
+        } catch (UnsupportedEncodingException e) {
+            // expected
+        }
+    }
+}
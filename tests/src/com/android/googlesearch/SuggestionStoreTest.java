@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link SuggestionStore}, in particular that it recovers from a file that a crash
+ * left behind half written.
+ */
+public class SuggestionStoreTest extends AndroidTestCase {
+
+    private static final int MAX_BYTES = 256 * 1024;
+    private static final long TTL = 24 * 60 * 60 * 1000L;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "suggestion_store_test.dat");
+        deleteFiles();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFiles();
+        super.tearDown();
+    }
+
+    private void deleteFiles() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    private SuggestionStore open(int maxBytes) {
+        SuggestionStore store = new SuggestionStore(mFile, maxBytes, TTL);
+        store.prewarm();
+        return store;
+    }
+
+    private static void put(SuggestionStore store, String key) {
+        Suggestions suggestions = new Suggestions(
+                new String[] { key + " one", key + " two" }, new String[] { "1", null });
+        store.put(key, suggestions, System.currentTimeMillis() + TTL, null,
+                store.getGeneration());
+    }
+
+    private static void assertStored(SuggestionStore store, String key) {
+        SuggestionStore.Entry entry = store.get(key);
+        assertNotNull(key, entry);
+        assertEquals(2, entry.mSuggestions.getCount());
+        assertEquals(key + " one", entry.mSuggestions.getSuggestion(0));
+        assertEquals("1", entry.mSuggestions.getPopularity(0));
+        assertEquals(key + " two", entry.mSuggestions.getSuggestion(1));
+        assertNull(entry.mSuggestions.getPopularity(1));
+    }
+
+    /**
+     * Walks the log the way the store does, and returns where each record starts, followed
+     * by where the last one ends.
+     */
+    private ArrayList<Long> getRecordOffsets() throws IOException {
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            long offset = 8;
+            while (offset + 8 <= raf.length()) {
+                raf.seek(offset);
+                int length = raf.readInt();
+                if (length == 0) {
+                    break;
+                }
+                offsets.add(offset);
+                offset += 8 + length;
+            }
+            offsets.add(offset);
+        } finally {
+            raf.close();
+        }
+        return offsets;
+    }
+
+    public void testReopen() {
+        SuggestionStore store = open(MAX_BYTES);
+        put(store, "a");
+        put(store, "b");
+        store = open(MAX_BYTES);
+        assertStored(store, "a");
+        assertStored(store, "b");
+        assertNull(store.get("c"));
+    }
+
+    public void testGrowsPastMapping() {
+        // Far more than one chunk of the mapping.
+        SuggestionStore store = open(MAX_BYTES);
+        for (int i = 0; i < 1000; i++) {
+            put(store, "query " + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertStored(store, "query " + i);
+        }
+        store = open(MAX_BYTES);
+        for (int i = 0; i < 1000; i++) {
+            assertStored(store, "query " + i);
+        }
+    }
+
+    public void testTornTailIsCutOff() throws IOException {
+        SuggestionStore store = open(MAX_BYTES);
+        put(store, "a");
+        put(store, "b");
+        ArrayList<Long> offsets = getRecordOffsets();
+        long start = offsets.get(1);
+        long end = offsets.get(2);
+
+        // The crash came in the middle of writing "b".
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength((start + end) / 2);
+        raf.close();
+
+        store = open(MAX_BYTES);
+        assertStored(store, "a");
+        assertNull(store.get("b"));
+
+        // Appends go where the torn record was.
+        put(store, "c");
+        store = open(MAX_BYTES);
+        assertStored(store, "a");
+        assertNull(store.get("b"));
+        assertStored(store, "c");
+        assertEquals(start, (long) getRecordOffsets().get(1));
+    }
+
+    public void testTornHeaderIsCutOff() throws IOException {
+        SuggestionStore store = open(MAX_BYTES);
+        put(store, "a");
+        put(store, "b");
+        long start = getRecordOffsets().get(1);
+
+        // Only part of the length of "b" made it to the disk.
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(start + 2);
+        raf.close();
+
+        store = open(MAX_BYTES);
+        assertStored(store, "a");
+        assertNull(store.get("b"));
+    }
+
+    public void testBadCrcIsCutOff() throws IOException {
+        SuggestionStore store = open(MAX_BYTES);
+        put(store, "a");
+        put(store, "b");
+        put(store, "c");
+        ArrayList<Long> offsets = getRecordOffsets();
+
+        // Flip a byte in the middle of the payload of "b".
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        long offset = (offsets.get(1) + 8 + offsets.get(2)) / 2;
+        raf.seek(offset);
+        int b = raf.read();
+        raf.seek(offset);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        // Everything from the corrupt record on is dropped, as the log cannot be trusted
+        // past it.
+        store = open(MAX_BYTES);
+        assertStored(store, "a");
+        assertNull(store.get("b"));
+        assertNull(store.get("c"));
+
+        put(store, "d");
+        store = open(MAX_BYTES);
+        assertStored(store, "a");
+        assertStored(store, "d");
+    }
+
+    public void testBadHeaderStartsAfresh() throws IOException {
+        SuggestionStore store = open(MAX_BYTES);
+        put(store, "a");
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.writeInt(0);
+        raf.close();
+
+        store = open(MAX_BYTES);
+        assertNull(store.get("a"));
+        put(store, "b");
+        store = open(MAX_BYTES);
+        assertStored(store, "b");
+    }
+
+    public void testCompactionKeepsNewest() {
+        SuggestionStore store = open(4096);
+        for (int i = 0; i < 200; i++) {
+            put(store, "query " + i);
+        }
+        assertStored(store, "query 199");
+        assertNull(store.get("query 0"));
+        store = open(4096);
+        assertStored(store, "query 199");
+        assertNull(store.get("query 0"));
+    }
+
+    public void testCrashDuringCompaction() throws IOException {
+        SuggestionStore store = open(4096);
+        put(store, "a");
+        put(store, "b");
+
+        // The compacted file was only partly written when the process died, so it was never
+        // swapped in.
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write(new byte[] { 0x47, 0x53, 0x53, 0x43, 0, 0, 0 });
+        out.close();
+
+        store = open(4096);
+        assertStored(store, "a");
+        assertStored(store, "b");
+        assertFalse(tmp.exists());
+
+        // The next compaction still works.
+        for (int i = 0; i < 200; i++) {
+            put(store, "query " + i);
+        }
+        store = open(4096);
+        assertStored(store, "query 199");
+        assertNull(store.get("a"));
+    }
+
+    public void testClear() {
+        SuggestionStore store = open(MAX_BYTES);
+        put(store, "a");
+        int generation = store.getGeneration();
+        store.clear();
+        assertNull(store.get("a"));
+
+        // A response fetched before the clear is not stored after it.
+        store.put("b", Suggestions.EMPTY, System.currentTimeMillis() + TTL, null, generation);
+        assertNull(store.get("b"));
+        store = open(MAX_BYTES);
+        assertNull(store.get("a"));
+        assertNull(store.get("b"));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.googlesearch.loadtest;
+
+import com.android.googlesearch.SuggestionProvider;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Replays typing traces against the suggestion provider with {@link LoadDriver}, and
+ * reports the results. Point the provider at a {@link StandInSuggestServer} first, see there.
+ *
+ * Arguments, all optional, given with "am instrument -e name value":
+ * <ul>
+ * <li>sessions: how many users type at once (default 8). Each is a typing session of its
+ *     own in the provider, which only keeps track of the 16 most recent ones.</li>
+ * <li>rounds: how many times each user goes through the traces (default 1).</li>
+ * <li>trace: a trace file on the device (default: the traces in the assets).</li>
+ * <li>server: the base url of the stand-in server, e.g. http://10.0.2.2:8080, for
+ *     counting requests per character typed.</li>
+ * </ul>
+ *
+ * If the provider's stats are turned on (see {@link SuggestionProvider#STATS_PATH}), they
+ * are reported after the run too.
+ */
+public class LoadTestInstrumentation extends Instrumentation {
+
+    private static final String TAG = "GoogleSearchLoadTest";
+
+    private static final String DEFAULT_TRACES = "typing_traces.txt";
+
+    private static final Uri SUGGEST_URI = Uri.parse(
+            "content://com.android.googlesearch.SuggestionProvider/search_suggest_query");
+
+    private static final Uri STATS_URI = Uri.parse(
+            "content://com.android.googlesearch.SuggestionProvider/"
+            + SuggestionProvider.STATS_PATH);
+
+    private Bundle mArguments;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        mArguments = arguments;
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        Bundle results = new Bundle();
+        try {
+            int sessions = getIntArgument("sessions", 8);
+            int rounds = getIntArgument("rounds", 1);
+            String traceFile = mArguments.getString("trace");
+            Reader reader = traceFile != null ? new FileReader(traceFile)
+                    : new InputStreamReader(getContext().getAssets().open(DEFAULT_TRACES));
+            List<TypingTrace> traces;
+            try {
+                traces = TypingTrace.read(reader);
+            } finally {
+                reader.close();
+            }
+
+            final ContentResolver resolver = getTargetContext().getContentResolver();
+            LoadDriver.Client client = new LoadDriver.Client() {
+                public int query(int session, String text) {
+                    Uri uri = SUGGEST_URI.buildUpon()
+                            .appendQueryParameter(SuggestionProvider.SESSION_PARAMETER,
+                                    String.valueOf(session))
+                            .build();
+                    Cursor cursor = resolver.query(uri, null, null, new String[] { text },
+                            null);
+                    if (cursor == null) {
+                        return 0;
+                    }
+                    try {
+                        return cursor.getCount();
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            };
+            LoadDriver.Report report = new LoadDriver(client, sessions, rounds,
+                    mArguments.getString("server")).run(traces);
+            Log.i(TAG, report.toString());
+            results.putString(REPORT_KEY_STREAMRESULT, report + "\n" + getStats(resolver));
+            finish(Activity.RESULT_OK, results);
+        } catch (Exception e) {
+            Log.e(TAG, "Load test failed", e);
+            results.putString(REPORT_KEY_STREAMRESULT, "Load test failed: " + e + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+        }
+    }
+
+    /**
+     * Gets the provider's stats, or an empty string if they are turned off.
+     */
+    private static String getStats(ContentResolver resolver) {
+        Cursor cursor = resolver.query(STATS_URI, null, null, null, null);
+        if (cursor == null) {
+            return "";
+        }
+        try {
+            StringBuilder stats = new StringBuilder();
+            int column = cursor.getColumnIndexOrThrow(SuggestionProvider.COLUMN_LINE);
+            while (cursor.moveToNext()) {
+                stats.append(cursor.getString(column)).append('\n');
+            }
+            return stats.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int getIntArgument(String name, int defaultValue) {
+        String value = mArguments.getString(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}